@@ -0,0 +1,96 @@
+package de.bio_photonics.omxtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/** Base64 and storing / loading of Conf XML files */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConfBenchmark {
+
+    /** payload size in bytes */
+    @Param({ "65536", "16777216" })
+    public int bytes;
+
+    /** codec of the data entries, see DataCodec */
+    @Param({ "none", "deflate" })
+    public String codec;
+
+    byte [] payload;
+    String encoded;
+    Conf cfg;
+    File xmlFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+	// float-like data, as stored for OTFs
+	Random rnd = new Random( 42 );
+	java.nio.FloatBuffer fb = java.nio.ByteBuffer.wrap( payload = new byte[ bytes ] ).asFloatBuffer();
+	while (fb.hasRemaining())
+	    fb.put( (float)Math.exp( -rnd.nextDouble()*10 ));
+	encoded = Base64.encode( payload );
+
+	cfg = new Conf("fairsim");
+	Conf.Folder data = cfg.r().mk("otf3d").mk("data");
+	data.newInt("bands").setVal( 3 );
+	data.newDbl("cycles-lateral").setVal( 0.048828 );
+	for (int b=0; b<3; b++)
+	    data.newData("band-"+b).setVal( payload ).setCodec( codec );
+
+	xmlFile = File.createTempFile( "bench", ".xml" );
+	cfg.saveFile( xmlFile.getAbsolutePath() );
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+	xmlFile.delete();
+    }
+
+    @Benchmark
+    public String base64Encode() {
+	return Base64.encode( payload );
+    }
+
+    @Benchmark
+    public byte [] base64Decode() {
+	return Base64.decode( encoded );
+    }
+
+    @Benchmark
+    public boolean saveFile() throws Exception {
+	return cfg.saveFile( xmlFile.getAbsolutePath() );
+    }
+
+    /** load, and decode all data entries */
+    @Benchmark
+    public int loadFile() throws Exception {
+	Conf c = Conf.loadFile( xmlFile.getAbsolutePath() );
+	Conf.Folder data = c.r().cd("otf3d").cd("data");
+	int len = 0;
+	for (int b=0; b<3; b++)
+	    len += data.getData("band-"+b).val().length;
+	return len;
+    }
+
+}
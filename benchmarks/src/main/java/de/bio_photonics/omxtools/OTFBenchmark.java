@@ -0,0 +1,100 @@
+package de.bio_photonics.omxtools;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/** OTF reading, rendering of the power spectra and storing as XML */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OTFBenchmark {
+
+    /** OTF size, axial x lateral samples */
+    @Param({ "33x257", "65x513" })
+    public String size;
+
+    /** memory-map the file instead of reading it */
+    @Param({ "false", "true" })
+    public boolean mapped;
+
+    File otfFile, outFile;
+    OTFConverter otf;
+    FloatProcessor [] raw;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+	OTFConverter.setLogger( null );
+	final String [] s = size.split("x");
+	otfFile = File.createTempFile( "bench", ".otf" );
+	outFile = File.createTempFile( "bench", ".xml" );
+	SyntheticData.writeOtf( otfFile, Integer.parseInt( s[0] ), Integer.parseInt( s[1] ), 42 );
+	otf = new OTFConverter( otfFile, mapped );
+	raw = OTF_Reader.readOTFs( otf );
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+	otfFile.delete();
+	outFile.delete();
+    }
+
+    @Benchmark
+    public OTFConverter parse() throws IOException {
+	return new OTFConverter( otfFile, mapped );
+    }
+
+    /** parse, and build the planar layout readOTFs wraps (no cache) */
+    @Benchmark
+    public FloatProcessor [] readOTFs() throws IOException {
+	return OTF_Reader.readOTFs( new OTFConverter( otfFile, mapped ));
+    }
+
+    /** what displayOTFs computes, without showing it */
+    @Benchmark
+    public ImageStack renderSpectra() {
+	return new OTFSpectrumRenderer( true, true, true, true, false ).render( raw );
+    }
+
+    @Benchmark
+    public ImageStack renderSpectraFastMath() {
+	return new OTFSpectrumRenderer( true, true, true, true, true ).render( raw );
+    }
+
+    @Benchmark
+    public File saveProjection() throws Exception {
+	OTF_Reader rd = new OTF_Reader();
+	rd.saveOTFprojection( otf, outFile );
+	return outFile;
+    }
+
+    @Benchmark
+    public File saveProjection3d() throws Exception {
+	OTF_Reader rd = new OTF_Reader();
+	rd.doSave3d = true;
+	rd.saveOTFprojection( otf, outFile );
+	return outFile;
+    }
+
+}
@@ -0,0 +1,111 @@
+package de.bio_photonics.omxtools;
+
+import ij.ImageStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/** OMX and Zeiss splitters, on stacks in memory or read from DV files */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SplitterBenchmark {
+
+    /** frame size (square) */
+    @Param({ "256", "1024" })
+    public int size;
+
+    /** number of z slices */
+    @Param({ "8" })
+    public int zDepth;
+
+    /** 'memory': ImageStack, 'dv': virtual stack reading from a DV file */
+    @Param({ "memory", "dv" })
+    public String source;
+
+    ImageStack omx, zeiss;
+    DVStackReader omxDv, zeissDv;
+    File omxFile, zeissFile;
+
+    final OMX_Splitter omxSplitter = new OMX_Splitter();
+    final Zeiss_Splitter zeissSplitter = new Zeiss_Splitter();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+	if (source.equals("dv")) {
+	    omxFile   = SyntheticData.writeStack( File.createTempFile( "omx", ".dv" ),
+		AcquisitionOrder.omx( zDepth ), size, size, 42 );
+	    zeissFile = SyntheticData.writeStack( File.createTempFile( "zeiss", ".dv" ),
+		AcquisitionOrder.zeiss( zDepth ), size, size, 42 );
+	    omxDv   = new DVStackReader( omxFile );
+	    zeissDv = new DVStackReader( zeissFile );
+	    omx   = omxDv.getStack();
+	    zeiss = zeissDv.getStack();
+	} else {
+	    omx   = SyntheticData.stack( AcquisitionOrder.omx( zDepth ), size, size, 42 );
+	    zeiss = SyntheticData.stack( AcquisitionOrder.zeiss( zDepth ), size, size, 42 );
+	}
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+	if (omxDv != null) {
+	    omxDv.close();
+	    zeissDv.close();
+	    omxFile.delete();
+	    zeissFile.delete();
+	}
+    }
+
+    /** access all frames, so views and copies are compared fairly */
+    static void consume( ImageStack st, Blackhole bh ) {
+	for (int i=1; i<=st.getSize(); i++)
+	    bh.consume( st.getPixels(i) );
+    }
+
+    @Benchmark
+    public void omxGet2Dstack( Blackhole bh ) {
+	consume( omxSplitter.get2Dstack( omx, zDepth/2, false, 2 ), bh );
+    }
+
+    @Benchmark
+    public void omxGet2DstackPadded( Blackhole bh ) {
+	consume( omxSplitter.get2Dstack( omx, zDepth/2, true, 2 ), bh );
+    }
+
+    @Benchmark
+    public void omxGet2DstackPaddedFaded( Blackhole bh ) {
+	consume( omxSplitter.get2Dstack( omx, zDepth/2, true, 2, 10, true ), bh );
+    }
+
+    @Benchmark
+    public ImageStack [] omxSeperateAngles() {
+	return omxSplitter.seperateAngles( omx );
+    }
+
+    @Benchmark
+    public void zeissGet2Dstack( Blackhole bh ) {
+	consume( zeissSplitter.get2Dstack( zeiss, zDepth/2 ), bh );
+    }
+
+}
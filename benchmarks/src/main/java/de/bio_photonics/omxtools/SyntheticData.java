@@ -0,0 +1,158 @@
+package de.bio_photonics.omxtools;
+
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+
+/** Writes synthetic, reproducible test data: DV OTF files and OMX- or
+ *  Zeiss-ordered SIM stacks (in memory or as DV file), so benchmarks
+ *  run offline. All data depends only on the size and the seed. */
+public final class SyntheticData {
+
+    private SyntheticData() {}
+
+    /** lateral and axial cycles/micron per OTF sample (as in OMX files) */
+    static final float CYC_LAT = 0.048828f, CYC_AX = 0.12307f;
+
+    /** Write a DV header for 'n' planes of w x h pixels of type 'type' */
+    static void writeHeader( OutputStream out, int w, int h, int n, int type,
+	float px, float py, float pz ) throws IOException {
+	ByteBuffer hdr = ByteBuffer.allocate( 1024 ).order( ByteOrder.LITTLE_ENDIAN );
+	hdr.putInt( 0, w ).putInt( 4, h ).putInt( 8, n ).putInt( 12, type );
+	hdr.putFloat( 40, px ).putFloat( 44, py ).putFloat( 48, pz );
+	hdr.putInt( 92, 0 );			// no extended header
+	hdr.putShort( 96, (short)0xc0a0 );	// DV stamp
+	hdr.putShort( 180, (short)1 );		// time points
+	hdr.putShort( 196, (short)1 );		// wavelengths
+	out.write( hdr.array() );
+    }
+
+    /** Write an OMX OTF: 3 complex bands of 'axial' x 'lateral' samples,
+     *  a smooth falloff with some noise (w: axial, h: lateral, as in the files) */
+    public static File writeOtf( File f, int axial, int lateral, long seed ) throws IOException {
+	Random rnd = new Random( seed );
+	OutputStream out = new BufferedOutputStream( new FileOutputStream( f ), 1<<16 );
+	try {
+	    writeHeader( out, axial, lateral, 3, DVStackReader.PXL_CPLX32, CYC_AX, CYC_LAT, 0 );
+	    ByteBuffer row = ByteBuffer.allocate( 8*axial ).order( ByteOrder.LITTLE_ENDIAN );
+	    for (int band=0; band<3; band++)
+	    for (int l=0; l<lateral; l++) {
+		row.clear();
+		for (int a=0; a<axial; a++) {
+		    final int ar = Math.min( a, axial-a );	// wrapped axial distance
+		    final double r = Math.hypot( (double)l/lateral, 2.*ar/axial );
+		    final double v = Math.max( 0, 1-r )/(1+band);
+		    row.putFloat( (float)(v + 1e-3*rnd.nextGaussian()) );
+		    row.putFloat( (float)(1e-3*rnd.nextGaussian()) );
+		}
+		out.write( row.array() );
+	    }
+	} finally {
+	    out.close();
+	}
+	return f;
+    }
+
+    /** Value of pixel (x,y) of the frame at (angle, z, phase): a stripe
+     *  pattern in direction 'angle', shifted by 'phase', plus noise */
+    static short pixel( int x, int y, int angle, int nrAngles, int z, int phase,
+	int nrPhases, Random rnd ) {
+	final double phi = Math.PI*angle/nrAngles;
+	final double k = 2*Math.PI/6.5;		// period of 6.5 pixels
+	final double s = k*(x*Math.cos(phi) + y*Math.sin(phi)) + 2*Math.PI*phase/nrPhases;
+	final double v = 1000 + 100*z + 800*(1+Math.cos(s)) + 30*rnd.nextGaussian();
+	return (short)Math.max( 0, Math.min( 65535, (int)v ));
+    }
+
+    /** Frame 'n' of a stack in 'order' */
+    static short [] frame( AcquisitionOrder order, int n, int w, int h, long seed ) {
+	final int [] pos = position( order, n );
+	final String [] dims = order.getDimensions();
+	int angle=0, z=0, phase=0;
+	for (int i=0; i<dims.length; i++) {
+	    if (dims[i].equals( AcquisitionOrder.ANGLE )) angle = pos[i];
+	    if (dims[i].equals( AcquisitionOrder.Z ))     z     = pos[i];
+	    if (dims[i].equals( AcquisitionOrder.PHASE )) phase = pos[i];
+	}
+	final int nrAngles = order.size( AcquisitionOrder.ANGLE );
+	final int nrPhases = order.size( AcquisitionOrder.PHASE );
+	Random rnd = new Random( seed*31 + n );
+	short [] ret = new short[ w*h ];
+	for (int y=0; y<h; y++)
+	    for (int x=0; x<w; x++)
+		ret[ y*w+x ] = pixel( x, y, angle, nrAngles, z, phase, nrPhases, rnd );
+	return ret;
+    }
+
+    /** coordinates of frame 'n' in 'order', outermost first */
+    static int [] position( AcquisitionOrder order, int n ) {
+	final String [] dims = order.getDimensions();
+	int [] ret = new int[ dims.length ];
+	for (int i=dims.length-1; i>=0; i--) {
+	    final int s = order.size( dims[i] );
+	    ret[i] = n%s;
+	    n /= s;
+	}
+	return ret;
+    }
+
+    /** An in-memory 16-bit stack of w x h frames, stored in 'order' */
+    public static ImageStack stack( AcquisitionOrder order, int w, int h, long seed ) {
+	ImageStack ret = new ImageStack( w, h );
+	for (int n=0; n<order.getNrFrames(); n++)
+	    ret.addSlice( "frame "+(n+1), new ShortProcessor( w, h, frame( order, n, w, h, seed ), null ));
+	return ret;
+    }
+
+    /** Write a 16-bit DV stack of w x h frames, stored in 'order'.
+     *  Frames are generated one by one, so this works for any size. */
+    public static File writeStack( File f, AcquisitionOrder order, int w, int h, long seed )
+	throws IOException {
+	OutputStream out = new BufferedOutputStream( new FileOutputStream( f ), 1<<16 );
+	try {
+	    writeHeader( out, w, h, order.getNrFrames(), DVStackReader.PXL_UINT16,
+		0.08f, 0.08f, 0.125f );
+	    ByteBuffer buf = ByteBuffer.allocate( 2*w*h ).order( ByteOrder.LITTLE_ENDIAN );
+	    for (int n=0; n<order.getNrFrames(); n++) {
+		buf.clear();
+		buf.asShortBuffer().put( frame( order, n, w, h, seed ));
+		out.write( buf.array() );
+	    }
+	} finally {
+	    out.close();
+	}
+	return f;
+    }
+
+    /** Write test data from the command line */
+    public static void main( String [] arg ) throws IOException {
+	if (arg.length < 2) {
+	    System.out.println("Usage: SyntheticData -otf axial lateral out.otf");
+	    System.out.println("       SyntheticData -omx|-zeiss width height z out.dv");
+	    return;
+	}
+	if (arg[0].equals("-otf") && arg.length==4) {
+	    writeOtf( new File( arg[3] ), Integer.parseInt( arg[1] ),
+		Integer.parseInt( arg[2] ), 42 );
+	    return;
+	}
+	if ((arg[0].equals("-omx") || arg[0].equals("-zeiss")) && arg.length==5) {
+	    final int z = Integer.parseInt( arg[3] );
+	    writeStack( new File( arg[4] ),
+		(arg[0].equals("-omx"))?(AcquisitionOrder.omx( z )):(AcquisitionOrder.zeiss( z )),
+		Integer.parseInt( arg[1] ), Integer.parseInt( arg[2] ), 42 );
+	    return;
+	}
+	System.out.println("Unknown arguments, run without arguments for usage");
+    }
+
+}
@@ -0,0 +1,236 @@
+package de.bio_photonics.omxtools;
+
+import ij.ImageStack;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/** Describes the order in which frames of a SIM acquisition are stored:
+ *  a list of named dimensions (phase, angle, z, ...) with their sizes,
+ *  from the outermost (slowest changing) to the innermost.
+ *  Permutation tables into any other nesting order are computed once
+ *  and cached, all splitting and reordering works on these tables. */
+public final class AcquisitionOrder {
+
+    /** common dimension names */
+    public static final String PHASE="phase", ANGLE="angle", Z="z",
+	CHANNEL="channel", TIME="time";
+
+    final String [] dims;
+    final int [] sizes;
+    final int [] strides;
+    final int nrFrames;
+
+    // permutation tables, by requested order
+    private final Map<String,int []> tables = new HashMap<String,int []>();
+
+    /** Create an order with dimensions 'dims' of sizes 'sizes',
+     *  outermost first */
+    public AcquisitionOrder( String [] dims, int [] sizes ) {
+	if (dims.length != sizes.length)
+	    throw new IllegalArgumentException("Need one size per dimension");
+	this.dims    = dims.clone();
+	this.sizes   = sizes.clone();
+	this.strides = new int[ dims.length ];
+
+	long n=1;
+	for (int i=dims.length-1; i>=0; i--) {
+	    if (sizes[i]<1)
+		throw new IllegalArgumentException("Size of '"+dims[i]+"' has to be positive");
+	    for (int j=0; j<i; j++)
+		if (dims[i].equals(dims[j]))
+		    throw new IllegalArgumentException("Dimension '"+dims[i]+"' given twice");
+	    strides[i] = (int)n;
+	    n *= sizes[i];
+	    if (n > Integer.MAX_VALUE)
+		throw new IllegalArgumentException("Too many frames");
+	}
+	nrFrames = (int)n;
+    }
+
+    /** OMX order: 3 angles x z x 5 phases (angle-major) */
+    public static AcquisitionOrder omx( int zDepth ) {
+	return omx( 3, 5, zDepth );
+    }
+
+    /** OMX order with 'angles' x z x 'phases', e.g. 3 x 3 for 2D-SIM */
+    public static AcquisitionOrder omx( int angles, int phases, int zDepth ) {
+	return new AcquisitionOrder( new String [] { ANGLE, Z, PHASE },
+	    new int [] { angles, zDepth, phases } );
+    }
+
+    /** Zeiss order: 5 phases x 5 angles x z (phase-major) */
+    public static AcquisitionOrder zeiss( int zDepth ) {
+	return new AcquisitionOrder( new String [] { PHASE, ANGLE, Z },
+	    new int [] { 5, 5, zDepth } );
+    }
+
+    /** Returns a new order with 'dim' (e.g. channel or time) added
+     *  as outermost dimension, i.e. 'size' repeats of this order */
+    public AcquisitionOrder withOuter( String dim, int size ) {
+	String [] d = new String[ dims.length+1 ];
+	int [] s = new int[ dims.length+1 ];
+	d[0]=dim; s[0]=size;
+	System.arraycopy( dims, 0, d, 1, dims.length );
+	System.arraycopy( sizes, 0, s, 1, dims.length );
+	return new AcquisitionOrder( d, s );
+    }
+
+    /** Number of frames */
+    public int getNrFrames() {
+	return nrFrames;
+    }
+
+    /** Dimension names, outermost first */
+    public String [] getDimensions() {
+	return dims.clone();
+    }
+
+    /** Returns the size of dimension 'dim', or 1 if there is no such dimension */
+    public int size( String dim ) {
+	final int d = find( dim );
+	return (d<0)?(1):(sizes[d]);
+    }
+
+    /** Returns the position of 'dim' (0: outermost), or -1 */
+    public int find( String dim ) {
+	for (int i=0; i<dims.length; i++)
+	    if (dims[i].equals(dim))
+		return i;
+	return -1;
+    }
+
+    /** Returns the (0-based) frame at coordinates 'pos', given in
+     *  the order of 'getDimensions' */
+    public int index( int ... pos ) {
+	if (pos.length != dims.length)
+	    throw new IllegalArgumentException("Need one coordinate per dimension");
+	int ret=0;
+	for (int i=0; i<pos.length; i++) {
+	    if (pos[i]<0 || pos[i]>=sizes[i])
+		throw new IndexOutOfBoundsException(dims[i]+"="+pos[i]+" out of range");
+	    ret += pos[i]*strides[i];
+	}
+	return ret;
+    }
+
+    /** Returns, for each frame in nesting order 'order' (outermost
+     *  first, a permutation of our dimensions), the (0-based) frame
+     *  in this order */
+    public int [] table( String ... order ) {
+	return tableRef( order ).clone();
+    }
+
+    /** Returns the frames where 'dim' equals 'val', in nesting order
+     *  'order' (the remaining dimensions, outermost first) */
+    public int [] select( String dim, int val, String ... order ) {
+	if (val<0 || val>=size(dim))
+	    throw new IndexOutOfBoundsException(dim+"="+val+" out of range");
+	String [] full = new String[ order.length+1 ];
+	full[0] = dim;
+	System.arraycopy( order, 0, full, 1, order.length );
+	final int n = nrFrames/size(dim);
+	return Arrays.copyOfRange( tableRef( full ), val*n, (val+1)*n );
+    }
+
+    /** Reorders the slices of 'stack' (stored in this order) in place
+     *  into nesting order 'order', and returns the resulting order. Only
+     *  slice references (and labels) are moved, by following the cycles
+     *  of the permutation, so no pixels are copied. Virtual stacks are
+     *  refused, as they do not hold their pixels. */
+    public AcquisitionOrder reorder( ImageStack stack, String ... order ) {
+	if (stack.isVirtual())
+	    throw new IllegalArgumentException("Virtual stacks can not be reordered in place");
+	if (stack.getSize() != nrFrames)
+	    throw new IllegalArgumentException("Stack does not match "+this);
+
+	final int [] table = tableRef( order );
+	final Object [] pixels = stack.getImageArray();
+
+	// new[i] = old[table[i]], cycle by cycle
+	final BitSet done = new BitSet( nrFrames );
+	for (int start=0; start<nrFrames; start++) {
+	    if (done.get(start) || table[start]==start)
+		continue;
+	    final Object tmpPixels = pixels[start];
+	    final String tmpLabel  = stack.getSliceLabel( start+1 );
+	    int i = start;
+	    while (true) {
+		done.set(i);
+		final int next = table[i];
+		if (next == start) {
+		    pixels[i] = tmpPixels;
+		    stack.setSliceLabel( tmpLabel, i+1 );
+		    break;
+		}
+		pixels[i] = pixels[next];
+		stack.setSliceLabel( stack.getSliceLabel( next+1 ), i+1 );
+		i = next;
+	    }
+	}
+
+	int [] s = new int[ order.length ];
+	for (int i=0; i<order.length; i++)
+	    s[i] = size( order[i] );
+	return new AcquisitionOrder( order, s );
+    }
+
+    /** cached permutation table, not to be changed */
+    int [] tableRef( String ... order ) {
+	final String key = Arrays.toString( order );
+	synchronized ( tables ) {
+	    int [] ret = tables.get( key );
+	    if (ret == null) {
+		ret = computeTable( order );
+		tables.put( key, ret );
+	    }
+	    return ret;
+	}
+    }
+
+    private int [] computeTable( String [] order ) {
+	if (order.length != dims.length)
+	    throw new IllegalArgumentException("Order has to list all of "+Arrays.toString(dims));
+
+	// our stride for each position in 'order'
+	final int [] str = new int[ order.length ];
+	final int [] len = new int[ order.length ];
+	boolean [] used = new boolean[ dims.length ];
+	for (int i=0; i<order.length; i++) {
+	    final int d = find( order[i] );
+	    if (d<0 || used[d])
+		throw new IllegalArgumentException("Order has to list all of "+Arrays.toString(dims));
+	    used[d] = true;
+	    str[i] = strides[d];
+	    len[i] = sizes[d];
+	}
+
+	// count through 'order' like an odometer
+	final int [] ret = new int[ nrFrames ];
+	final int [] pos = new int[ order.length ];
+	int idx=0;
+	for (int n=0; n<nrFrames; n++) {
+	    ret[n] = idx;
+	    for (int i=order.length-1; i>=0; i--) {
+		idx += str[i];
+		if (++pos[i] < len[i])
+		    break;
+		idx -= str[i]*len[i];
+		pos[i]=0;
+	    }
+	}
+	return ret;
+    }
+
+    @Override
+    public String toString() {
+	StringBuilder sb = new StringBuilder();
+	for (int i=0; i<dims.length; i++)
+	    sb.append( (i>0)?(" x "):("") ).append( dims[i] ).append( '=' ).append( sizes[i] );
+	return sb.toString();
+    }
+
+}
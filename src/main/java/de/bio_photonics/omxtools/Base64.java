@@ -1,64 +1,305 @@
 package de.bio_photonics.omxtools;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+
 /* https://en.wikipedia.org/wiki/Base64 */
 
-/** Base64 encode / decode */
+/** Base64 encode / decode. Table-driven, encodes directly to
+ *  a Writer / OutputStream, decodes from any CharSequence or Reader.
+ *  Large payloads are encoded (and decoded) in parallel chunks. */
 public class Base64 {
 
-    private static String codes = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/=";
-
-    static byte[] decode(String input)    {
-        
-	byte decoded[] = new byte[((input.length() * 3) / 4) - 
-		(input.indexOf('=') > 0 ? (input.length() - input.indexOf('=')) : 0)];
-        char[] inChars = input.toCharArray();
-        int j = 0;
-        int b[] = new int[4];
-        for (int i = 0; i < inChars.length; i += 4)     {
-            // This could be made faster (but more complicated) by precomputing these index locations
-            b[0] = codes.indexOf(inChars[i]);
-            b[1] = codes.indexOf(inChars[i + 1]);
-            b[2] = codes.indexOf(inChars[i + 2]);
-            b[3] = codes.indexOf(inChars[i + 3]);
-            decoded[j++] = (byte) ((b[0] << 2) | (b[1] >> 4));
-            if (b[2] < 64)      {
-                decoded[j++] = (byte) ((b[1] << 4) | (b[2] >> 2));
-                if (b[3] < 64)  {
-                    decoded[j++] = (byte) ((b[2] << 6) | b[3]);
-	        }
-            }
-        }
-
-        return decoded;
+    private static final char [] codes =
+	"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    // reverse table: 0..63 for valid chars, PAD for '=', INVALID otherwise
+    private static final byte [] values = new byte[128];
+    private static final byte PAD = 64, INVALID = -1;
+
+    static {
+	java.util.Arrays.fill( values, INVALID );
+	for (int i=0; i<codes.length; i++)
+	    values[ codes[i] ] = (byte)i;
+	values['='] = PAD;
+    }
+
+    // chunk sizes, multiples of 3 bytes / 4 chars, so chunks need no padding
+    static final int CHUNK_BYTES = 3*(1<<16);
+    static final int CHUNK_CHARS = 4*(1<<16);
+    // payloads larger than this are processed in parallel
+    static final int PARALLEL_THRESHOLD = 4*CHUNK_BYTES;
+
+
+    // ------ decoding ------
+
+    static byte[] decode(String input) {
+	return decode( input, 0, input.length() );
+    }
+
+    /** Decode 'input', which has to be a multiple of 4 chars long,
+     *  without whitespace. */
+    static byte[] decode( CharSequence input ) {
+	return decode( input, 0, input.length() );
+    }
+
+    /** Decode the chars 'start' (incl.) to 'end' (excl.) of 'in',
+     *  which have to be a multiple of 4 long, without whitespace. */
+    static byte[] decode( final CharSequence in, final int start, final int end ) {
+
+	final int len = end-start;
+	if (len%4!=0)
+	    throw new IllegalArgumentException("Base64 length not a multiple of 4");
+
+	// padding is only allowed in the last quantum (checked when decoding)
+	int pad = 0;
+	if (len>0 && in.charAt(end-1)=='=') pad++;
+	if (len>1 && in.charAt(end-2)=='=') pad++;
+
+	final byte [] decoded = new byte[ (len/4)*3 - pad ];
+	final int nrQuanta = len/4;
+
+	if ( len < PARALLEL_THRESHOLD ) {
+	    decodeQuanta( in, start, decoded, 0, nrQuanta, true );
+	} else {
+	    final int qPerChunk = CHUNK_CHARS/4;
+	    new SimpleMT.PFor( 0, (nrQuanta+qPerChunk-1)/qPerChunk ) {
+		@Override
+		public void at(int c) {
+		    final int q0 = c*qPerChunk;
+		    decodeQuanta( in, start + 4*q0, decoded, 3*q0,
+			Math.min( qPerChunk, nrQuanta-q0 ), q0+qPerChunk >= nrQuanta );
+		}
+	    }.run();
+	}
+	return decoded;
+    }
+
+    /** value of one char, throws on invalid chars */
+    private static int val( char c ) {
+	int v = (c<128)?(values[c]):(INVALID);
+	if (v==INVALID)
+	    throw new IllegalArgumentException("Invalid Base64 character: '"+c+"'");
+	return v;
+    }
+
+    /** true if a quantum is padded wrongly ('b2' padding only, or any padding
+     *  in a quantum that is not the last one) */
+    private static boolean badPadding( int b0, int b1, int b2, int b3, boolean last ) {
+	if ((b0|b1) >= PAD)
+	    return true;
+	if ((b2|b3) < PAD)
+	    return false;
+	return (!last || (b2==PAD && b3!=PAD));
+    }
+
+    /** decode 'nrQuanta' quanta of 4 chars, starting at 'in[pos]', into 'out[op]'.
+     *  'last' is set if these include the last quantum of the input. */
+    private static void decodeQuanta( CharSequence in, int pos, byte [] out, int op, int nrQuanta,
+	boolean last ) {
+	for (int q=0; q<nrQuanta; q++, pos+=4) {
+	    final int b0 = val( in.charAt(pos  ));
+	    final int b1 = val( in.charAt(pos+1));
+	    final int b2 = val( in.charAt(pos+2));
+	    final int b3 = val( in.charAt(pos+3));
+	    if (badPadding( b0, b1, b2, b3, last && q==nrQuanta-1 ))
+		throw new IllegalArgumentException("Misplaced Base64 padding");
+	    out[op++] = (byte) ((b0 << 2) | (b1 >> 4));
+	    if (b2 < PAD) {
+		out[op++] = (byte) ((b1 << 4) | (b2 >> 2));
+		if (b3 < PAD) {
+		    out[op++] = (byte) ((b2 << 6) | b3);
+		}
+	    }
+	}
     }
 
-    static String encode(byte[] in)       {
-        StringBuffer out = new StringBuffer((in.length * 4) / 3);
-        int b;
-        for (int i = 0; i < in.length; i += 3)  {
-            b = (in[i] & 0xFC) >> 2;
-            out.append(codes.charAt(b));
-            b = (in[i] & 0x03) << 4;
-            if (i + 1 < in.length)      {
-                b |= (in[i + 1] & 0xF0) >> 4;
-                out.append(codes.charAt(b));
-                b = (in[i + 1] & 0x0F) << 2;
-                if (i + 2 < in.length)  {
-                    b |= (in[i + 2] & 0xC0) >> 6;
-                    out.append(codes.charAt(b));
-                    b = in[i + 2] & 0x3F;
-                    out.append(codes.charAt(b));
-                } else  {
-                    out.append(codes.charAt(b));
-                    out.append('=');
-                }
-            } else      {
-                out.append(codes.charAt(b));
-                out.append("==");
-            }
-        }
-
-        return out.toString();
+    /** Decode Base64 from 'in' to 'out', until 'in' ends or the char 'stop'
+     *  is encountered. Whitespace is skipped. Returns the number of bytes written. */
+    static long decode( Reader in, OutputStream out, char stop ) throws IOException {
+	final char [] cbuf = new char[ CHUNK_CHARS ];
+	final byte [] obuf = new byte[ CHUNK_CHARS/4*3 ];
+	final int [] quantum = new int[4];
+	int nq=0, op=0;
+	long total=0;
+	boolean end = false, padded = false;
+
+	while (!end) {
+	    final int r = in.read( cbuf );
+	    if (r<0)
+		break;
+	    for (int i=0; i<r; i++) {
+		final char c = cbuf[i];
+		if (c==stop) {
+		    end = true;
+		    break;
+		}
+		if (Character.isWhitespace(c))
+		    continue;
+		quantum[nq++] = val( c );
+		if (nq==4) {
+		    // a padded quantum has to be the last one
+		    if (padded || badPadding( quantum[0], quantum[1], quantum[2], quantum[3], true ))
+			throw new IllegalArgumentException("Misplaced Base64 padding");
+		    padded = ((quantum[2]|quantum[3]) >= PAD);
+		    obuf[op++] = (byte) ((quantum[0] << 2) | (quantum[1] >> 4));
+		    if (quantum[2] < PAD) {
+			obuf[op++] = (byte) ((quantum[1] << 4) | (quantum[2] >> 2));
+			if (quantum[3] < PAD)
+			    obuf[op++] = (byte) ((quantum[2] << 6) | quantum[3]);
+		    }
+		    nq=0;
+		    if (op > obuf.length-3) {
+			out.write( obuf, 0, op );
+			total+=op;
+			op=0;
+		    }
+		}
+	    }
+	}
+	if (nq!=0)
+	    throw new IllegalArgumentException("Base64 length not a multiple of 4");
+	out.write( obuf, 0, op );
+	return total+op;
+    }
+
+
+    // ------ encoding ------
+
+    /** Number of chars 'len' bytes encode to */
+    static int encodedLength( int len ) {
+	return ((len+2)/3)*4;
+    }
+
+    /** Encode 'len' bytes of 'in', starting at 'off', into 'out' at 'op'.
+     *  Returns the number of chars written. */
+    static int encode( byte [] in, int off, int len, char [] out, int op ) {
+	final int start = op;
+	final int full = off + (len/3)*3;
+	int i=off;
+	for (; i<full; i+=3) {
+	    final int v = ((in[i]&0xff)<<16) | ((in[i+1]&0xff)<<8) | (in[i+2]&0xff);
+	    out[op++] = codes[ (v>>>18)      ];
+	    out[op++] = codes[ (v>>>12)&0x3f ];
+	    out[op++] = codes[ (v>>> 6)&0x3f ];
+	    out[op++] = codes[  v      &0x3f ];
+	}
+	final int rest = off+len-full;
+	if (rest==1) {
+	    final int v = (in[i]&0xff);
+	    out[op++] = codes[ v>>>2 ];
+	    out[op++] = codes[ (v&0x03)<<4 ];
+	    out[op++] = '=';
+	    out[op++] = '=';
+	} else if (rest==2) {
+	    final int v = ((in[i]&0xff)<<8) | (in[i+1]&0xff);
+	    out[op++] = codes[ v>>>10 ];
+	    out[op++] = codes[ (v>>>4)&0x3f ];
+	    out[op++] = codes[ (v&0x0f)<<2 ];
+	    out[op++] = '=';
+	}
+	return op-start;
+    }
+
+    /** Encode 'len' bytes of 'in' from 'off' into 'out' at 'op',
+     *  in parallel chunks if the input is large */
+    private static void encodeParallel( final byte [] in, final int off, final int len,
+	final char [] out, final int op ) {
+	if (len < PARALLEL_THRESHOLD) {
+	    encode( in, off, len, out, op );
+	    return;
+	}
+	new SimpleMT.PFor( 0, (len+CHUNK_BYTES-1)/CHUNK_BYTES ) {
+	    @Override
+	    public void at(int c) {
+		final int o = c*CHUNK_BYTES;
+		encode( in, off+o, Math.min( CHUNK_BYTES, len-o ), out, op + o/3*4 );
+	    }
+	}.run();
+    }
+
+    static String encode(byte[] in) {
+	char [] out = new char[ encodedLength( in.length ) ];
+	encodeParallel( in, 0, in.length, out, 0 );
+	return new String( out );
+    }
+
+    /** Encode 'len' bytes of 'in' from 'off' directly to 'out'. Large
+     *  inputs are encoded in parallel, in batches to bound memory use. */
+    static void encode( byte [] in, int off, int len, Writer out ) throws IOException {
+	final int batch = CHUNK_BYTES*Math.max(4, SimpleMT.getNrThreads());
+	char [] buf = new char[ encodedLength( Math.min( len, batch )) ];
+	while (len>0) {
+	    final int l = Math.min( len, batch );
+	    encodeParallel( in, off, l, buf, 0 );
+	    out.write( buf, 0, encodedLength(l) );
+	    off+=l; len-=l;
+	}
+    }
+
+    /** Encode 'len' bytes of 'in' from 'off' directly to 'out', as ASCII. */
+    static void encode( byte [] in, int off, int len, OutputStream out ) throws IOException {
+	final int batch = CHUNK_BYTES*Math.max(4, SimpleMT.getNrThreads());
+	char [] buf = new char[ encodedLength( Math.min( len, batch )) ];
+	byte [] obuf = new byte[ buf.length ];
+	while (len>0) {
+	    final int l = Math.min( len, batch );
+	    final int nc = encodedLength(l);
+	    encodeParallel( in, off, l, buf, 0 );
+	    for (int i=0; i<nc; i++)
+		obuf[i] = (byte)buf[i];
+	    out.write( obuf, 0, nc );
+	    off+=l; len-=l;
+	}
+    }
+
+    /** Returns a stream that Base64-encodes all bytes written to it,
+     *  into 'out'. Output is identical to 'encode' of all bytes.
+     *  'close()' writes the last (padded) quantum, but does not close 'out'. */
+    static OutputStream encodingStream( final Writer out ) {
+	return new OutputStream() {
+	    // multiple of 3, so chunks encode without padding
+	    final byte [] buf  = new byte[ CHUNK_BYTES ];
+	    final char [] cbuf = new char[ CHUNK_CHARS ];
+	    int len = 0;
+
+	    @Override
+	    public void write( int b ) throws IOException {
+		buf[len++] = (byte)b;
+		if (len == buf.length)
+		    flushChunk();
+	    }
+
+	    @Override
+	    public void write( byte [] b, int off, int l ) throws IOException {
+		// large writes bypass the buffer once it is empty
+		if (len==0 && l >= buf.length) {
+		    final int direct = (l/3)*3;
+		    encode( b, off, direct, out );
+		    off+=direct; l-=direct;
+		}
+		while (l>0) {
+		    int c = Math.min( l, buf.length-len );
+		    System.arraycopy( b, off, buf, len, c );
+		    len+=c; off+=c; l-=c;
+		    if (len == buf.length)
+			flushChunk();
+		}
+	    }
+
+	    void flushChunk() throws IOException {
+		out.write( cbuf, 0, encode( buf, 0, len, cbuf, 0 ));
+		len=0;
+	    }
+
+	    @Override
+	    public void close() throws IOException {
+		if (len>0)
+		    flushChunk();
+	    }
+	};
     }
 
 }
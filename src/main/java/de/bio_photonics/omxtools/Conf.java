@@ -1,27 +1,32 @@
 package de.bio_photonics.omxtools;
 
 // Parser:
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.xml.sax.InputSource;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import java.io.InputStream;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 
 // Output:
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.OutputKeys;
 import java.io.File;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 
 // Node manipulation
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
 // Data structure
 import java.util.Map;
-import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Scanner;
@@ -33,7 +38,14 @@ import java.nio.DoubleBuffer;
 import javax.xml.bind.DatatypeConverter;
 
 
-/** Wrappers around entries to a configuration file */
+/** Wrappers around entries to a configuration file.
+ *
+ *  The tree can be read by many threads while another thread updates it:
+ *  folders publish their (insertion-ordered) content as immutable maps,
+ *  so lookups take no lock, and a sub-tree can be replaced atomically.
+ *  Entries publish their values the same way, so reading a value takes
+ *  no lock either. {@link #snapshot} returns a frozen copy, which
+ *  shares all values. */
 public class Conf {
 
     final String namespace;
@@ -45,6 +57,28 @@ public class Conf {
 	root = new Folder(namespace);
     }
 
+    private Conf(String namespace, Folder root) {
+	this.namespace = namespace;
+	this.root = root;
+    }
+
+    /** Returns an immutable snapshot of the current configuration.
+     *  Only the tree structure is copied, values are shared, so this
+     *  is cheap even for large data. This is safe as setters always
+     *  install new arrays: arrays returned by the live configuration
+     *  must not be changed in place. Entries of the snapshot return
+     *  copies of their arrays (or read-only buffers), so they can not
+     *  be changed through the snapshot.
+     *  Trying to modify the snapshot throws an UnsupportedOperationException. */
+    public Conf snapshot() {
+	return new Conf( namespace, (Folder)root.frozenCopy() );
+    }
+
+    /** Returns if this configuration is a (read-only) snapshot */
+    public boolean isSnapshot() {
+	return root.frozen;
+    }
+
     /** Returns the namespace */
     public String getNamespace() {
 	return namespace;
@@ -67,6 +101,16 @@ public class Conf {
 
     /** storing entries */
     static abstract class Entry {
+	// set on snapshot copies, before they are published
+	boolean frozen = false;
+
+	/** throws if this entry belongs to a snapshot */
+	final void checkMutable() {
+	    if (frozen)
+		throw new UnsupportedOperationException("Entry is part of a read-only snapshot");
+	}
+	/** Returns a frozen copy, see {@link Conf#snapshot} */
+	abstract Entry frozenCopy();
 	/** Output name and short description of tag */
 	abstract String prettyPrint() ;
 	/** Output the type */
@@ -75,12 +119,18 @@ public class Conf {
 	abstract String getText();
 	/** Set entry from text */
 	abstract void fromText( String t ) throws SomeIOException;
+	/** Write the content (XML-escaped) to 'out' */
+	void writeText( Writer out ) throws java.io.IOException {
+	    out.write( escapeXml( getText() ));
+	}
     };
 
 
     /** Folder collecting other entries. */
     public static final class Folder extends Entry {
-	Map<String,Entry> subEntry = new Hashtable<String,Entry>(); 
+	// The published content, in insertion order. It is never changed,
+	// writers copy it (holding the folder's lock), so readers need no lock.
+	volatile Map<String,Entry> subEntry = Collections.emptyMap();
 
 	final String ourName;
 	private Folder(String name) {
@@ -89,12 +139,51 @@ public class Conf {
 
 	// ------ General element management ------
 	
-	/** Add an entry to the folder  */
-	public <T extends Entry> T setEntry(String name, T e) {
-	    subEntry.put( name, e );
+	/** Add an entry to the folder. An existing entry of that 
+	 *  name is replaced, and keeps its position. */
+	public synchronized <T extends Entry> T setEntry(String name, T e) {
+	    checkMutable();
+	    Map<String,Entry> m = new LinkedHashMap<String,Entry>( subEntry );
+	    m.put( name, e );
+	    subEntry = Collections.unmodifiableMap( m );
 	    return e;
 	}
 
+	/** Atomically replaces (or adds) the sub-folder 'name' by 'content'.
+	 *  Readers see either the old or the complete new sub-tree. If the
+	 *  name of 'content' differs, a (structural) copy is installed.
+	 *  @return The installed folder */
+	public Folder replace(String name, Folder content) {
+	    Folder f = (content.ourName.equals(name))?(content):(content.copy(name, false));
+	    return setEntry( name, f );
+	}
+
+	/** Returns if this folder belongs to a (read-only) snapshot */
+	public boolean isFrozen() {
+	    return frozen;
+	}
+
+	/** Copy this folder (named 'name'), and all sub-entries */
+	Folder copy( String name, boolean freeze ) {
+	    Folder ret = new Folder( name );
+	    Map<String,Entry> m = new LinkedHashMap<String,Entry>();
+	    for ( Map.Entry<String,Entry> e : subEntry.entrySet() ) {
+		Entry c = (e.getValue() instanceof Folder)?
+		    (((Folder)e.getValue()).copy( e.getKey(), freeze )):
+		    (e.getValue().frozenCopy());
+		c.frozen = freeze;
+		m.put( e.getKey(), c );
+	    }
+	    ret.subEntry = Collections.unmodifiableMap( m );
+	    ret.frozen = freeze;
+	    return ret;
+	}
+
+	@Override
+	Entry frozenCopy() {
+	    return copy( ourName, true );
+	}
+
 	/** Returns the entry 'name', of type 'type', or null */
 	public <T extends Entry> T getEntry(String name, Class<T> type ) {
 	    Entry e = subEntry.get(name);
@@ -126,10 +215,13 @@ public class Conf {
 	
 	/** Removes element named 'name'.
 	 *  @return If the element existed */
-	public boolean delete(String name ) {
+	public synchronized boolean delete(String name ) {
+	    checkMutable();
 	    if (!contains(name))
 		return false;
-	    subEntry.remove(name);
+	    Map<String,Entry> m = new LinkedHashMap<String,Entry>( subEntry );
+	    m.remove( name );
+	    subEntry = Collections.unmodifiableMap( m );
 	    return true;
 	}
 
@@ -143,7 +235,7 @@ public class Conf {
 	}
 	
 	/** Returns or creates the sub-folder 'name'. */
-	public Folder mk( String name ) {
+	public synchronized Folder mk( String name ) {
 	    Folder f = getEntry(name,Folder.class);
 	    if (f==null) {
 		f=new Folder(name);
@@ -160,8 +252,9 @@ public class Conf {
 	/* creates folder tree */
 	String prettyPrint(String fn) {
 	    String ret="";
-	    for ( String n : subEntry.keySet() ) {
-		Entry e = subEntry.get(n);
+	    for ( Map.Entry<String,Entry> me : subEntry.entrySet() ) {
+		final String n = me.getKey();
+		final Entry e = me.getValue();
 		if (!(e instanceof Folder)) {
 		    ret += fn+ourName+":"+n+" "+e.prettyPrint()+"\n";	
 		}
@@ -245,14 +338,17 @@ public class Conf {
 	    //ret.setAttribute("type","folder");
 
 	    // loop sub elements
-	    for ( String n : subEntry.keySet() ) {
+	    for ( Map.Entry<String,Entry> me : subEntry.entrySet() ) {
 		Element sub;
-		Entry e = subEntry.get(n);
+		final String n = me.getKey();
+		final Entry e = me.getValue();
 		// data first ...
 		if (!(e instanceof Folder )) {
 		    
 		    sub = doc.createElement(n);
 		    sub.setAttribute("type",e.getType());
+		    if ((e instanceof DataEntry)&&(((DataEntry)e).codec!=null))
+			sub.setAttribute("codec",((DataEntry)e).codec.getName());
 		    Node text = doc.createTextNode(e.getText()); 
 		    sub.appendChild( text );
 
@@ -265,17 +361,43 @@ public class Conf {
 	    }
 	    return ret;
 	}
+	
+	/** write this folder, including all sub-entries, as XML */
+	void writeXml( Writer out ) throws java.io.IOException {
+	    
+	    out.write("<"+ourName+">\n");
+	    
+	    // loop sub elements
+	    for ( Map.Entry<String,Entry> me : subEntry.entrySet() ) {
+		final String n = me.getKey();
+		final Entry e = me.getValue();
+		// data first ...
+		if (!(e instanceof Folder )) {
+		    out.write("<"+n+" type=\""+e.getType()+"\"");
+		    if ((e instanceof DataEntry)&&(((DataEntry)e).codec!=null))
+			out.write(" codec=\""+((DataEntry)e).codec.getName()+"\"");
+		    out.write(">");
+		    e.writeText( out );
+		    out.write("</"+n+">\n");
+		}
+		// then, sub-folders
+		else {
+		    ((Folder)e).writeXml( out );
+		}
+	    }
+	    out.write("</"+ourName+">\n");
+	}
     
     };
 
 
     /** Entry for the common case of storing one or more ints */
     public static class IntEntry extends Entry {
-	int [] ourVals=new int[1];
+	volatile int [] ourVals=new int[1];
 
-	/** Get all values */
+	/** Get all values (a copy, if this entry is part of a snapshot) */
 	public int [] vals() {
-	    return ourVals;
+	    return (frozen)?(ourVals.clone()):(ourVals);
 	}
 	/** Get first value */
 	public int val() {
@@ -283,15 +405,25 @@ public class Conf {
 	}
 	/** Set new values */
 	public IntEntry setVal(int ... i) {
+	    checkMutable();
 	    if (i.length==0)
 		throw new RuntimeException("Array empty!");
-	    ourVals=new int[i.length];
-	    System.arraycopy( i, 0, ourVals, 0, i.length);
+	    int [] v=new int[i.length];
+	    System.arraycopy( i, 0, v, 0, i.length);
+	    ourVals=v;
 	    return this;
 	}
+
+	@Override
+	Entry frozenCopy() {
+	    IntEntry ret = new IntEntry();
+	    ret.ourVals = ourVals;
+	    return ret;
+	}
 	
 	@Override
 	String prettyPrint() {
+	    final int [] ourVals = this.ourVals;
 	    String ret  = "(INT) ";
 	    for (int i=0; i<Math.min(5,ourVals.length); i++)
 		ret+=" "+ourVals[i];
@@ -302,10 +434,12 @@ public class Conf {
 	
 	@Override
 	String getText() {
-	    String inttext=" ";
-	    for (int i : ourVals)
-		inttext += i+" ";
-	    return inttext;
+	    return NumberText.formatInts( ourVals );
+	}
+
+	@Override
+	void writeText( Writer out ) throws java.io.IOException {
+	    NumberText.writeInts( ourVals, out );
 	}
 	
 	@Override
@@ -313,14 +447,22 @@ public class Conf {
 	
 	@Override
 	void fromText( String text ) {
+	    int [] fast = NumberText.parseInts( text.toCharArray(), 0, text.length() );
+	    if (fast!=null) {
+		ourVals = fast;
+		return;
+	    }
+
+	    // not handled by the fast path (grouping, localized digits, ...)
 	    Scanner sc = new Scanner(text);
 	    ArrayList<Integer> i = new ArrayList<Integer>();
 	    while ( sc.hasNextInt() )
 		i.add( sc.nextInt() );
 	    
-	    ourVals = new int [ i.size() ];
-	    for (int j=0; j<ourVals.length; j++)
-		ourVals[j] = i.get(j);
+	    int [] v = new int [ i.size() ];
+	    for (int j=0; j<v.length; j++)
+		v[j] = i.get(j);
+	    ourVals = v;
 
 	}
 	
@@ -345,33 +487,107 @@ public class Conf {
     /** Entry for the common case of storing one or more Doubles */
     public static class DoubleEntry extends Entry {
 	
-	boolean exact=false, scientific=true;
-	double [] ourVals=new double[1];
+	volatile boolean exact=false;
+	boolean scientific=true;
+
+	/** The values, either as array or as (read-only) buffer view not
+	 *  yet copied. Never changed once published, so readers need no lock. */
+	static final class Values {
+	    final double [] vals;
+	    final DoubleBuffer view;
+	    Values( double [] vals, DoubleBuffer view ) {
+		this.vals = vals;
+		this.view = view;
+	    }
+	}
+	// writers (and the copy from a view) hold the entry's lock
+	volatile Values state = new Values( new double[1], null );
 	
-	/** Get all values */
+	/** Get all values (a copy, if this entry is part of a snapshot) */
 	public double [] vals() {
-	    return ourVals;
+	    return (frozen)?(array().clone()):(array());
+	}
+
+	/** the values, copied from the view on first call */
+	double [] array() {
+	    Values s = state;
+	    if (s.view==null)
+		return s.vals;
+
+	    synchronized (this) {
+		s = state;
+		if (s.view!=null) {
+		    double [] v = new double[ s.view.remaining() ];
+		    s.view.duplicate().get( v );
+		    state = s = new Values( v, null );
+		}
+		return s.vals;
+	    }
 	}
 	/** Get first value */
 	public double val() {
-	    return ourVals[0];
+	    final Values s = state;
+	    if (s.view!=null)
+		return s.view.get( s.view.position() );
+	    return s.vals[0];
 	}
 	/** Set new values */
-	public DoubleEntry setVal(double ... i) {
+	public synchronized DoubleEntry setVal(double ... i) {
+	    checkMutable();
 	    if (i.length==0)
 		throw new RuntimeException("Array empty");
-	    ourVals=new double[i.length];
-	    System.arraycopy( i, 0, ourVals, 0, i.length);
+	    double [] v = new double[i.length];
+	    System.arraycopy( i, 0, v, 0, i.length);
+	    state = new Values( v, null );
+	    return this;
+	}
+
+	/** Set the values as view on a buffer, which is only copied
+	 *  when 'vals()' is called. The buffer may be empty, as
+	 *  entries read from XML can be. */
+	synchronized DoubleEntry setView( DoubleBuffer db ) {
+	    state = new Values( null, db.asReadOnlyBuffer() );
 	    return this;
 	}
 
+	/** replace the values (when loading) */
+	synchronized void publish( double [] v ) {
+	    state = new Values( v, null );
+	}
+
+	/** Returns a read-only buffer view of the values. If the entry
+	 *  was loaded from a binary file, this does not copy. */
+	public DoubleBuffer buffer() {
+	    final Values s = state;
+	    if (s.view!=null)
+		return s.view.duplicate();
+	    return DoubleBuffer.wrap( s.vals ).asReadOnlyBuffer();
+	}
+
+	/** Returns the number of values */
+	public int length() {
+	    final Values s = state;
+	    return (s.view!=null)?(s.view.remaining()):(s.vals.length);
+	}
+
 	/** If set, numbers will be stored exact as base64 */
 	public void setExactOutput( boolean s) {
+	    checkMutable();
 	    exact=s;
 	}
 
+	@Override
+	Entry frozenCopy() {
+	    DoubleEntry ret = new DoubleEntry();
+	    ret.exact = exact;
+	    ret.scientific = scientific;
+	    ret.state = state;
+	    return ret;
+	}
+
 	@Override
 	String prettyPrint() {
+	    final double [] ourVals = array();
 	    String ret  = "(DBL)";
 	    for (int i=0; i<Math.min(5,ourVals.length); i++)
 		ret+=String.format(" %8.4f",ourVals[i]);
@@ -382,11 +598,9 @@ public class Conf {
 
 	@Override
 	String getText() {
+	    final double [] ourVals = array();
 	    if (! exact  ) {
-		String flttext=" ";
-		for (double i : ourVals)
-		    flttext += String.format("%8.5e ", i);
-		return flttext;
+		return NumberText.formatDoubles( ourVals );
 	    } else {
 		byte [] v = new byte[ 8*ourVals.length ];
 		DoubleBuffer db = ByteBuffer.wrap(v).asDoubleBuffer();
@@ -395,6 +609,14 @@ public class Conf {
 		return (" BASE64:"+b64+":END64 ");
 	    }
 	}
+	@Override
+	void writeText( Writer out ) throws java.io.IOException {
+	    if (!exact)
+		NumberText.writeDoubles( array(), out );
+	    else
+		super.writeText( out );
+	}
+
 	@Override
 	String getType() { return "decimal"; };
 	@Override
@@ -413,19 +635,29 @@ public class Conf {
 		    throw new SomeIOException(new Exception("Wrong base64 len for double"));
 		int nrDbl = v.length/8;
 		DoubleBuffer db = ByteBuffer.wrap(v).asDoubleBuffer();
-		ourVals = new double [nrDbl];
+		double [] ourVals = new double [nrDbl];
 		db.get( ourVals );
+		publish( ourVals );
 
 	    } else {
 
+		double [] fast = NumberText.parseDoubles( text.toCharArray(), 0, text.length(),
+		    NumberText.parseSeparator() );
+		if (fast!=null) {
+		    publish( fast );
+		    return;
+		}
+
+		// not handled by the fast path ("NaN", grouping, ...)
 		Scanner sc = new Scanner(text);
 		ArrayList<Double> i = new ArrayList<Double>();
 		while ( sc.hasNextDouble() )
 		    i.add( sc.nextDouble() );
 		
-		ourVals = new double [ i.size() ];
+		double [] ourVals = new double [ i.size() ];
 		for (int j=0; j<ourVals.length; j++)
 		    ourVals[j] = i.get(j);
+		publish( ourVals );
 	    }
 	}
     }
@@ -433,7 +665,7 @@ public class Conf {
 
     /** Entry for the common case of storing a String. */
     public static class StringEntry extends Entry {
-	String ourVal;
+	volatile String ourVal;
 	/** Return the value */
 	public String val() {
 	    return ourVal;
@@ -443,9 +675,17 @@ public class Conf {
 	 * it currently does not run through any encoding.
 	 * Use 'data' instead. */
 	public void val(String v) {
+	    checkMutable();
 	    ourVal=v;
 	}
 
+	@Override
+	Entry frozenCopy() {
+	    StringEntry ret = new StringEntry();
+	    ret.ourVal = ourVal;
+	    return ret;
+	}
+
 	@Override
 	String prettyPrint() {
 	    String ret  = " (STR) "+ourVal+"\n";
@@ -461,43 +701,261 @@ public class Conf {
 	}
     }
    
+    /** Provides the content of a data entry on demand */
+    public interface DataSource {
+	/** Write all bytes of the entry to 'out' */
+	public void writeTo( OutputStream out ) throws java.io.IOException;
+    }
+
     /** Entry storing (low to medium amounts) of binary data */
     public static class DataEntry extends Entry {
 
-	byte [] ourData = new byte[0];
+	/** The content: decoded bytes, or a not yet copied buffer view, a
+	 *  source, or not yet decoded Base64 text in [lazyStart,lazyEnd).
+	 *  Never changed once published, so readers need no lock. */
+	static final class Content {
+	    final byte [] data;
+	    final ByteBuffer view;
+	    final DataSource source;
+	    final String lazyText;
+	    final int lazyStart, lazyEnd;
+	    final DataCodec lazyCodec;	// codec of the lazy text
+	    final int length;
+
+	    Content( byte [] data, ByteBuffer view, DataSource source, String lazyText,
+		int lazyStart, int lazyEnd, DataCodec lazyCodec, int length ) {
+		this.data = data;
+		this.view = view;
+		this.source = source;
+		this.lazyText = lazyText;
+		this.lazyStart = lazyStart;
+		this.lazyEnd = lazyEnd;
+		this.lazyCodec = lazyCodec;
+		this.length = length;
+	    }
+
+	    static Content of( byte [] data ) {
+		return new Content( data, null, null, null, 0, 0, null, data.length );
+	    }
+	}
+
+	// writers (and decoding / copying the content) hold the entry's lock
+	volatile Content state = Content.of( new byte[0] );
+	// codec used when writing
+	volatile DataCodec codec = null;
 
-	/** Return the currently stored data */
+	/** Return the currently stored data (a copy, if this entry
+	 *  is part of a snapshot) */
 	public byte [] val() {
-	    return ourData;
+	    return (frozen)?(data().clone()):(data());
 	}
 
-	/** Set the data stored by this node */
-	public DataEntry setVal(byte [] b) {
-	    ourData = b;
+	/** the data, decoded / copied on first call */
+	byte [] data() {
+	    Content s = state;
+	    if (s.data!=null)
+		return s.data;
+
+	    synchronized (this) {
+		s = state;
+		if (s.data!=null)
+		    return s.data;
+		byte [] d;
+		if (s.view!=null) {
+		    d = new byte[ s.view.remaining() ];
+		    s.view.duplicate().get( d );
+		} else if (s.lazyText!=null) {
+		    d = Base64.decode( s.lazyText, s.lazyStart, s.lazyEnd );
+		    if (s.lazyCodec!=null) {
+			try {
+			    d = s.lazyCodec.decode( d );
+			} catch (SomeIOException e) {
+			    throw new RuntimeException( e );
+			}
+		    }
+		} else {
+		    ByteArrayOutputStream bo = new ByteArrayOutputStream( s.length );
+		    try {
+			s.source.writeTo( bo );
+		    } catch (java.io.IOException e) {
+			throw new RuntimeException( e );
+		    }
+		    d = bo.toByteArray();
+		}
+		state = Content.of( d );
+		return d;
+	    }
+	}
+
+	/** Set the data stored by this node. The array is stored,
+	 *  not copied, so it must not be changed afterwards. */
+	public synchronized DataEntry setVal(byte [] b) {
+	    checkMutable();
+	    state = Content.of( b );
 	    return this;
 	}
 
+	/** Set the data as view on a buffer, which is only copied
+	 *  when 'val()' is called. */
+	synchronized DataEntry setView( ByteBuffer b ) {
+	    state = new Content( null, b.asReadOnlyBuffer(), null, null, 0, 0, null, b.remaining() );
+	    return this;
+	}
+
+	/** Returns a read-only buffer view of the data. If the entry
+	 *  was loaded from a binary file, this does not copy. */
+	public ByteBuffer buffer() {
+	    final Content s = state;
+	    if (s.view!=null)
+		return s.view.duplicate();
+	    return ByteBuffer.wrap( data() ).asReadOnlyBuffer();
+	}
+
+	/** Set a source providing 'length' bytes on demand. The data
+	 *  is streamed to the file when saving, and only copied to memory
+	 *  if 'val()' is called. */
+	public synchronized DataEntry setSource( int length, DataSource src ) {
+	    checkMutable();
+	    state = new Content( null, null, src, null, 0, 0, null, length );
+	    return this;
+	}
+
+	/** Set the codec used when writing the data, see {@link DataCodec}.
+	 *  Use "none" (or null) for plain Base64.
+	 *  @throws IllegalArgumentException if the codec is unknown */
+	public synchronized DataEntry setCodec( String name ) {
+	    checkMutable();
+	    codec = DataCodec.forName( name );
+	    return this;
+	}
+
+	/** Returns the name of the codec used when writing the data */
+	public String getCodec() {
+	    final DataCodec c = codec;
+	    return (c==null)?("none"):(c.getName());
+	}
+
+	/** Set the content from its text representation (" BASE64:...:END64 "),
+	 *  but only decode it on the first call to 'val()' */
+	DataEntry setLazyText( String text ) throws SomeIOException {
+	    return setLazyText( text, null );
+	}
+
+	/** Set the content from its text representation, encoded by 'c' (or
+	 *  plain if null), but only decode it on the first call to 'val()'.
+	 *  The codec is kept, so the text is written back unchanged. */
+	synchronized DataEntry setLazyText( String text, DataCodec c ) throws SomeIOException {
+	    int start = text.indexOf("BASE64:")+7;
+	    int end   = text.indexOf(":END64");
+	    if ((start<7)||(end<start))
+		throw new SomeIOException(new Exception("No BASE64 data found"));
+	    while (start<end && text.charAt(start)<=' ') start++;
+	    while (end>start && text.charAt(end-1)<=' ') end--;
+	    if ((end-start)%4!=0)
+		throw new SomeIOException(new Exception("Base64 length not a multiple of 4"));
+
+	    // length, without decoding (the raw length leads encoded data)
+	    int length;
+	    if (c!=null) {
+		if (end-start<8)
+		    throw new SomeIOException(new Exception("Encoded data too short"));
+		length = DataCodec.rawLength( Base64.decode( text, start, start+8 ));
+	    } else {
+		length = (end-start)/4*3;
+		if (end>start && text.charAt(end-1)=='=') length--;
+		if (end>start && text.charAt(end-2)=='=') length--;
+	    }
+
+	    state = new Content( null, null, null, text, start, end, c, length );
+	    codec = c;
+	    return this;
+	}
+
+	/** Return the length of the stored data, in bytes */
+	public int length() {
+	    return state.length;
+	}
+
+	@Override
+	Entry frozenCopy() {
+	    DataEntry ret = new DataEntry();
+	    ret.state = state;
+	    ret.codec = codec;
+	    return ret;
+	}
+
 	@Override
 	String prettyPrint() {
-	    String ret  = " (DAT) "+ourData.length+" bytes ";
+	    String ret  = " (DAT) "+state.length+" bytes ";
 	    return ret;
 	}
 	@Override
 	String getText() { 
-	    return (" BASE64:"+Base64.encode(ourData)+":END64 ");
+	    final DataCodec c = codec;
+	    if (c!=null)
+		return (" BASE64:"+Base64.encode( c.encode( data() ))+":END64 ");
+	    return (" BASE64:"+Base64.encode(data())+":END64 ");
+	}
+	@Override
+	void writeText( Writer out ) throws java.io.IOException {
+	    final Content s = state;
+	    final DataCodec c = codec;
+	    out.write(" BASE64:");
+	    if (s.lazyText!=null && s.lazyCodec==c) {
+		// not decoded yet, so just pass the text on
+		out.write( s.lazyText, s.lazyStart, s.lazyEnd-s.lazyStart );
+	    } else if (c==null && s.view==null && s.source==null) {
+		final byte [] d = (s.data!=null)?(s.data):(data());
+		Base64.encode( d, 0, d.length, out );
+	    } else {
+		// stream (and encode) views and sources, without a copy
+		OutputStream enc = Base64.encodingStream( out );
+		OutputStream cs  = (c!=null)?(c.encodingStream( s.length, enc )):(enc);
+		writeTo( s, cs );
+		cs.close();
+		if (cs!=enc)
+		    enc.close();
+	    }
+	    out.write(":END64 ");
+	}
+	/** Write the content of a buffer view to a stream, in chunks */
+	static void writeView( ByteBuffer view, OutputStream out ) throws java.io.IOException {
+	    ByteBuffer v = view.duplicate();
+	    byte [] chunk = new byte[ Math.min( v.remaining(), 1<<16 ) ];
+	    while (v.hasRemaining()) {
+		final int l = Math.min( v.remaining(), chunk.length );
+		v.get( chunk, 0, l );
+		out.write( chunk, 0, l );
+	    }
+	}
+
+	/** Write all bytes of this entry to 'out', without copying
+	 *  them to memory if they are provided by a view or source */
+	void writeTo( OutputStream out ) throws java.io.IOException {
+	    writeTo( state, out );
 	}
+
+	void writeTo( Content s, OutputStream out ) throws java.io.IOException {
+	    if (s.view!=null)
+		writeView( s.view, out );
+	    else if (s.source!=null)
+		s.source.writeTo( out );
+	    else
+		out.write( (s.data!=null)?(s.data):(data()) );
+	}
+
 	@Override
 	String getType() { return "data"; }
 	@Override
 	void fromText( String text ) {
 		
-	    String sub = text.substring( 
-	        text.indexOf("BASE64:")+7, 
-	        text.indexOf(":END64")
-	    ).trim();
-	    
+	    // decode in place, skipping surrounding whitespace like trim() would
+	    int start = text.indexOf("BASE64:")+7;
+	    int end   = text.indexOf(":END64");
+	    while (start<end && text.charAt(start)<=' ') start++;
+	    while (end>start && text.charAt(end-1)<=' ') end--;
 
-	    ourData = Base64.decode( sub );
+	    setVal( Base64.decode( text, start, end ));
 	}
 
 
@@ -509,130 +967,193 @@ public class Conf {
 
     // ------ load / save ------
 
-    /** Write the config to an XML file */
+    /** Write the config to an XML file. The file is written
+     *  directly (no DOM is build), data entries are streamed. */
     public boolean saveFile( String xmlfile ) 
 	throws SomeIOException {
 	
-	DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-	dbf.setNamespaceAware(false);
-	dbf.setValidating(false);
-	dbf.setIgnoringElementContentWhitespace(true);
-	
-	DocumentBuilder builder=null; 
 	try {
-	    builder = dbf.newDocumentBuilder();
+	    Writer out = new BufferedWriter( new OutputStreamWriter(
+		new FileOutputStream( xmlfile ), "UTF-8" ), 1<<16 );
+	    try {
+		root.writeXml( out );
+	    } finally {
+		out.close();
+	    }
 	} catch (java.lang.Exception e) {
 	    throw new SomeIOException(e);
 	}
-	
-	Document doc = builder.newDocument();
-	doc.appendChild( root.toNode(doc) );
 
-	Transformer tf=null;
-	try {
-	    tf = TransformerFactory.newInstance().newTransformer();
-	    tf.setOutputProperty(OutputKeys.INDENT, "yes");
-	    tf.setOutputProperty(OutputKeys.METHOD, "xml");
-	    tf.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-	    tf.setOutputProperty(OutputKeys.STANDALONE, "yes");
-	    //tf.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
-	    tf.transform( new DOMSource( doc ) , new StreamResult( new File( xmlfile )));
-	} catch (java.lang.Exception e) {
-	    throw new SomeIOException(e);
-	}
+	return true;
+    }
 
+    /** Write the config to a binary file, see {@link ConfBinary} */
+    public boolean saveBinaryFile( String binfile ) 
+	throws SomeIOException {
+	ConfBinary.save( this, binfile );
 	return true;
     }
 
-    /** Create a Configuration from an XML file */
+    /** Load a config from a binary file, see {@link ConfBinary}.
+     *  The file is memory-mapped, data and decimal entries are
+     *  views into the mapping until their values are requested. */
+    public static Conf loadBinaryFile( String binfile ) 
+	throws SomeIOException {
+	return ConfBinary.load( binfile );
+    }
+
+    /** Escape the XML markup characters in 's' */
+    static String escapeXml( String s ) {
+	if (s==null)
+	    return "";
+	StringBuilder ret = null;
+	for (int i=0; i<s.length(); i++) {
+	    final char c = s.charAt(i);
+	    String r = null;
+	    switch (c) {
+		case '<': r="&lt;";	break;
+		case '>': r="&gt;";	break;
+		case '&': r="&amp;";	break;
+		case '"': r="&quot;";	break;
+	    }
+	    if (r!=null && ret==null) {
+		ret = new StringBuilder( s.length()+16 );
+		ret.append( s, 0, i );
+	    }
+	    if (ret!=null) {
+		if (r!=null) ret.append(r);
+		else ret.append(c);
+	    }
+	}
+	return (ret==null)?(s):(ret.toString());
+    }
+
+    /** Create a Configuration from an XML file.
+     *  See {@link #loadFile(String, String...)} */
     public static Conf loadFile(String xmlfile) 
 	throws SomeIOException {
+	return loadFile( xmlfile, new String[0] );
+    }
 
-	// parse the input
-	Document doc=null;
-	try {
-	    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-	    dbf.setNamespaceAware(false);
-	    dbf.setValidating(false);
-	    dbf.setIgnoringElementContentWhitespace(true);
+    /** Create a Configuration from an XML file. The file is parsed
+     *  as a stream (no DOM is build). Data entries keep their Base64
+     *  text, which is only decoded on the first call to 'val()'.
+     *  @param xmlfile The file to read
+     *  @param skipPaths Sub-trees or entries to skip, as dot-separated path
+     *	below the root, e.g. "otf3d" or "otf2d.data.band-1". */
+    public static Conf loadFile(String xmlfile, String ... skipPaths) 
+	throws SomeIOException {
 
-	    DocumentBuilder builder = dbf.newDocumentBuilder();
+	java.util.Set<String> skip = new java.util.HashSet<String>(
+	    java.util.Arrays.asList( skipPaths ));
 
-	    InputSource is = new InputSource(xmlfile);
-	    doc = builder.parse( is );
-	
+	Conf cfg = null;
+	try {
+	    InputStream in = new BufferedInputStream( new FileInputStream( xmlfile ), 1<<16 );
+	    try {
+		XMLInputFactory xf = XMLInputFactory.newInstance();
+		xf.setProperty( XMLInputFactory.IS_NAMESPACE_AWARE, false );
+		xf.setProperty( XMLInputFactory.SUPPORT_DTD, false );
+		XMLStreamReader xr = xf.createXMLStreamReader( in );
+		try {
+		    // find the root element
+		    while ( xr.hasNext() && xr.next() != XMLStreamConstants.START_ELEMENT );
+		    if ( !xr.isStartElement() )
+			throw new SomeIOException(new Exception("No root element found")); 
+		    
+		    cfg = new Conf( xr.getLocalName() );
+		    importXmlElement( xr, cfg.r(), "", skip );
+		} finally {
+		    xr.close();
+		}
+	    } finally {
+		in.close();
+	    }
+	}
+	catch ( SomeIOException e ) {
+	    throw e;
 	}
 	catch ( java.lang.Exception e ) {
 	    throw new SomeIOException(e); 
 	}
-	if (doc==null) {
-	    throw new SomeIOException(new Exception("Parsed document is null?")); 
-	}
-
-	// loop its nodes
-	Element rootNode = doc.getDocumentElement();
-	Conf cfg = new Conf(rootNode.getTagName());
-
-	importXmlElement( rootNode, cfg.r() );
 
 	return cfg;
     }
 
-    /** parses an XML element to our data structure */
-    static void importXmlElement( Element xml, Folder fdl ) 
-	throws SomeIOException {
+    /** parses the content of the current XML element (the reader
+     *  is positioned at its start tag) into our data structure. */
+    static void importXmlElement( XMLStreamReader xr, Folder fdl, String path,
+	java.util.Set<String> skip ) 
+	throws SomeIOException, XMLStreamException {
 	
-	// loop nodes
-	NodeList cld = xml.getChildNodes();
-	for (int i = 0; i<cld.getLength(); i++) {
+	// loop nodes, until the end of our element
+	while (xr.hasNext()) {
+	    
+	    final int ev = xr.next();
+	    if (ev == XMLStreamConstants.END_ELEMENT)
+		return;
 
 	    // first, check only elements
-	    Node n = cld.item(i);
-	    if (n.getNodeType() != Node.ELEMENT_NODE)
+	    if (ev != XMLStreamConstants.START_ELEMENT)
 		continue;
 	    
-	    Element e = (Element)n;
-	    String name = e.getTagName();
+	    final String name = xr.getLocalName();
+	    final String fullName = path+name;
+	    String t = xr.getAttributeValue( null, "type" );
+	    if (t==null) t="";
+
+	    // skip, if asked to
+	    if (skip.contains( fullName )) {
+		skipElement( xr );
+		continue;
+	    }
 
 	    // now, if no type is set, assume it is a folder, recurse into to
-	    if (e.getAttribute("type").equals("")) {
+	    if (t.equals("")) {
 		Folder nf = fdl.mk( name );
-		importXmlElement( e, nf );
+		importXmlElement( xr, nf, fullName+".", skip );
+		continue;
 	    }
 
 	    // otherwise, see if we can import it
-	    String t = e.getAttribute("type");
-	    String c = e.getTextContent();
-
-	    /*
-	    System.out.print("t: "+t+" val: ");
-	    for ( String j : c.trim().split("\\s+") )
-		System.out.print("["+j+"]");
-	    System.out.println(""); */
-
-
 	    try {
-
+		
 		if ( t.equals( "int" )) 
-		    fdl.newInt( name ).fromText( c );
+		    fdl.newInt( name ).fromText( xr.getElementText() );
 		
-		if ( t.equals( "decimal" )) 
-		    fdl.newDbl( name ).fromText( c );
+		else if ( t.equals( "decimal" )) 
+		    fdl.newDbl( name ).fromText( xr.getElementText() );
 		
-		if ( t.equals( "string" )) 
-		    fdl.newStr( name ).fromText( c );
+		else if ( t.equals( "string" )) 
+		    fdl.newStr( name ).fromText( xr.getElementText() );
 		
-		if ( t.equals( "data" )) 
-		    fdl.newData( name ).fromText( c );
-	    
+		else if ( t.equals( "data" )) {
+		    // attributes have to be read before the element text
+		    DataCodec c = DataCodec.forName( xr.getAttributeValue( null, "codec" ));
+		    fdl.newData( name ).setLazyText( xr.getElementText(), c );
+		}
+		
+		else
+		    skipElement( xr );
 	    
+	    } catch ( XMLStreamException ex ) {
+		throw ex;
+	    } catch ( SomeIOException ex ) {
+		throw ex;
 	    } catch ( Exception ex ) {
 		throw new SomeIOException(ex);
 	    }
-	
-	
 	}
+    }
 
+    /** skip the current element (reader at its start tag), including all children */
+    static void skipElement( XMLStreamReader xr ) throws XMLStreamException {
+	int depth=1;
+	while (depth>0 && xr.hasNext()) {
+	    final int ev = xr.next();
+	    if (ev == XMLStreamConstants.START_ELEMENT) depth++;
+	    if (ev == XMLStreamConstants.END_ELEMENT) depth--;
+	}
     }
 
     // ========================================================================
@@ -0,0 +1,344 @@
+package de.bio_photonics.omxtools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/** Binary, memory-mappable container for the {@link Conf} tree.
+ *  This holds the same information as the XML files, and both
+ *  formats convert into each other without loss.
+ *
+ *  Layout (all numbers little endian):
+ *  <pre>
+ *  8 bytes   magic "FSCONFB" + version (1)
+ *  int32     number of directory entries
+ *  int32     length of the namespace, followed by its UTF-8 bytes
+ *  directory, one record per entry, in depth-first order:
+ *	int32	index of the parent folder (-1: root)
+ *	int8	type (0: folder, 1: int, 2: decimal, 3: string, 4: data)
+ *	int8	flags (bit 0: decimal stored 'exact', bit 1: data has a codec)
+ *	int16	length of the name, followed by its UTF-8 bytes
+ *	(if bit 1 set: int16 length of the codec name, followed by the name)
+ *	int64	offset of the payload (from start of file)
+ *	int64	length of the payload (bytes)
+ *  payloads, each starting 8-byte aligned:
+ *	int:	int32 values
+ *	decimal: float64 values
+ *	string:	UTF-8 bytes
+ *	data:	raw bytes, as stored by the entry (the codec is only
+ *		applied when writing XML)
+ *  </pre>
+ *  */
+public class ConfBinary {
+
+    static final byte [] MAGIC = { 'F','S','C','O','N','F','B', 1 };
+
+    static final byte T_FOLDER=0, T_INT=1, T_DECIMAL=2, T_STRING=3, T_DATA=4;
+    static final byte F_EXACT = 1, F_CODEC = 2;
+
+    private ConfBinary() {}
+
+    /** one directory record */
+    static class Record {
+	int parent;
+	byte type, flags;
+	String name, codec;
+	long offset, length;
+	Conf.Entry entry;
+	byte [] payload;	// for small, eagerly converted entries
+    }
+
+
+    // ------ saving ------
+
+    /** collect records, depth-first */
+    static void collect( Conf.Folder fdl, int parent, List<Record> ret ) {
+	for ( java.util.Map.Entry<String,Conf.Entry> me : fdl.subEntry.entrySet() ) {
+	    final String n = me.getKey();
+	    final Conf.Entry e = me.getValue();
+	    Record r = new Record();
+	    r.parent = parent;
+	    r.name  = n;
+	    r.entry = e;
+
+	    if (e instanceof Conf.Folder) {
+		r.type = T_FOLDER;
+		ret.add( r );
+		collect( (Conf.Folder)e, ret.size()-1, ret );
+		continue;
+	    }
+
+	    if (e instanceof Conf.IntEntry) {
+		int [] v = ((Conf.IntEntry)e).ourVals;
+		r.type = T_INT;
+		r.payload = new byte[ 4*v.length ];
+		ByteBuffer.wrap( r.payload ).order( ByteOrder.LITTLE_ENDIAN ).asIntBuffer().put( v );
+	    } else if (e instanceof Conf.DoubleEntry) {
+		Conf.DoubleEntry de = (Conf.DoubleEntry)e;
+		r.type = T_DECIMAL;
+		r.flags = (de.exact)?(F_EXACT):(0);
+		r.payload = new byte[ 8*de.length() ];
+		ByteBuffer.wrap( r.payload ).order( ByteOrder.LITTLE_ENDIAN ).asDoubleBuffer().put( de.buffer() );
+	    } else if (e instanceof Conf.StringEntry) {
+		String v = ((Conf.StringEntry)e).val();
+		r.type = T_STRING;
+		r.payload = utf8( (v==null)?(""):(v) );
+	    } else if (e instanceof Conf.DataEntry) {
+		Conf.DataEntry de = (Conf.DataEntry)e;
+		r.type = T_DATA;
+		r.length = de.length();
+		if (de.codec!=null) {
+		    r.flags = F_CODEC;
+		    r.codec = de.codec.getName();
+		}
+	    } else {
+		continue;
+	    }
+	    if (r.payload!=null)
+		r.length = r.payload.length;
+	    ret.add( r );
+	}
+    }
+
+    static byte [] utf8( String s ) {
+	try {
+	    return s.getBytes("UTF-8");
+	} catch (java.io.UnsupportedEncodingException e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    static String utf8( ByteBuffer b, int len ) {
+	byte [] tmp = new byte[len];
+	b.get( tmp );
+	try {
+	    return new String( tmp, "UTF-8" );
+	} catch (java.io.UnsupportedEncodingException e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    /** size of the directory record */
+    static int recordSize( Record r ) {
+	int ret = 4+1+1+2+ utf8(r.name).length +8+8;
+	if (r.codec!=null)
+	    ret += 2+utf8(r.codec).length;
+	return ret;
+    }
+
+    static long align8( long pos ) {
+	return (pos+7)&(~7L);
+    }
+
+    /** Store 'cfg' to 'file' */
+    public static void save( Conf cfg, String file ) throws Conf.SomeIOException {
+
+	List<Record> dir = new ArrayList<Record>();
+	collect( cfg.r(), -1, dir );
+	final byte [] ns = utf8( cfg.getNamespace() );
+
+	// compute the header size, then the payload offsets
+	long pos = 8 + 4 + 4 + ns.length;
+	for ( Record r : dir )
+	    pos += recordSize( r );
+	for ( Record r : dir ) {
+	    if (r.type == T_FOLDER)
+		continue;
+	    pos = align8( pos );
+	    r.offset = pos;
+	    pos += r.length;
+	}
+
+	try {
+	    OutputStream out = new BufferedOutputStream( new FileOutputStream( file ), 1<<16 );
+	    try {
+		ByteBuffer hdr = ByteBuffer.allocate( 16 + ns.length ).order( ByteOrder.LITTLE_ENDIAN );
+		hdr.put( MAGIC ).putInt( dir.size() ).putInt( ns.length ).put( ns );
+		out.write( hdr.array() );
+		long written = hdr.capacity();
+
+		for ( Record r : dir ) {
+		    byte [] name = utf8( r.name );
+		    ByteBuffer rec = ByteBuffer.allocate( recordSize( r )).order( ByteOrder.LITTLE_ENDIAN );
+		    rec.putInt( r.parent ).put( r.type ).put( r.flags ).putShort( (short)name.length );
+		    rec.put( name );
+		    if (r.codec!=null) {
+			byte [] codec = utf8( r.codec );
+			rec.putShort( (short)codec.length ).put( codec );
+		    }
+		    rec.putLong( r.offset ).putLong( r.length );
+		    out.write( rec.array() );
+		    written += rec.capacity();
+		}
+
+		for ( Record r : dir ) {
+		    if (r.type == T_FOLDER)
+			continue;
+		    while (written < r.offset) {
+			out.write(0);
+			written++;
+		    }
+		    if (r.payload!=null) {
+			out.write( r.payload );
+		    } else {
+			// data entries are streamed, not copied
+			CountingStream cs = new CountingStream( out );
+			((Conf.DataEntry)r.entry).writeTo( cs );
+			if (cs.count != r.length)
+			    throw new IOException("Data entry '"+r.name+"' provided "+cs.count
+				+" bytes, expected "+r.length);
+		    }
+		    written += r.length;
+		}
+	    } finally {
+		out.close();
+	    }
+	} catch (IOException e) {
+	    throw new Conf.SomeIOException(e);
+	}
+    }
+
+    /** counts bytes passed through to the underlying stream */
+    static class CountingStream extends OutputStream {
+	final OutputStream out;
+	long count=0;
+	CountingStream( OutputStream o ) {
+	    out = o;
+	}
+	@Override
+	public void write( int b ) throws IOException {
+	    out.write(b);
+	    count++;
+	}
+	@Override
+	public void write( byte [] b, int off, int len ) throws IOException {
+	    out.write( b, off, len );
+	    count+=len;
+	}
+    }
+
+
+    // ------ loading ------
+
+    /** Load a config from 'file'. The file is memory-mapped, and data
+     *  and decimal entries are handed out as views into the mapping.
+     *  Files larger than 2 GB can not be mapped, and are refused. */
+    public static Conf load( String file ) throws Conf.SomeIOException {
+
+	ByteBuffer buf;
+	try {
+	    RandomAccessFile raf = new RandomAccessFile( new File(file), "r" );
+	    try {
+		FileChannel fc = raf.getChannel();
+		if (fc.size() > Integer.MAX_VALUE)
+		    throw new IOException("Binary config file too large to map (over 2 GB): "+file);
+		buf = fc.map( FileChannel.MapMode.READ_ONLY, 0, fc.size() );
+	    } finally {
+		raf.close();	// mapping stays valid
+	    }
+	} catch (IOException e) {
+	    throw new Conf.SomeIOException(e);
+	}
+	buf.order( ByteOrder.LITTLE_ENDIAN );
+
+	try {
+	    for (int i=0; i<MAGIC.length; i++)
+		if (buf.get() != MAGIC[i])
+		    throw new IOException("Not a binary config file (or wrong version)");
+
+	    final int nrEntries = buf.getInt();
+	    final String ns = utf8( buf, buf.getInt() );
+	    Conf cfg = new Conf( ns );
+
+	    Conf.Folder [] folders = new Conf.Folder[ nrEntries ];
+
+	    for (int i=0; i<nrEntries; i++) {
+		final int parent  = buf.getInt();
+		final byte type   = buf.get();
+		final byte flags  = buf.get();
+		final String name = utf8( buf, buf.getShort() & 0xffff );
+		final String codec = ((flags & F_CODEC)!=0)?(utf8( buf, buf.getShort() & 0xffff )):(null);
+		final long offset = buf.getLong();
+		final long length = buf.getLong();
+
+		if ((parent>=i) || (parent>=0 && folders[parent]==null))
+		    throw new IOException("Corrupt directory: parent "+parent+" of entry "+i);
+		if ((type!=T_FOLDER) && (offset<0 || length<0 || offset+length > buf.capacity()))
+		    throw new IOException("Corrupt directory: entry "+name+" out of file");
+
+		final Conf.Folder fdl = (parent<0)?(cfg.r()):(folders[parent]);
+
+		ByteBuffer payload = null;
+		if (type!=T_FOLDER) {
+		    ByteBuffer tmp = buf.duplicate();
+		    tmp.limit( (int)(offset+length) ).position( (int)offset );
+		    payload = tmp.slice().order( ByteOrder.LITTLE_ENDIAN );
+		}
+
+		switch (type) {
+		    case T_FOLDER:
+			folders[i] = fdl.mk( name );
+			break;
+		    case T_INT: {
+			if (length%4!=0)
+			    throw new IOException("Corrupt entry "+name+": length "+length+" is not whole ints");
+			int [] v = new int[ (int)length/4 ];
+			payload.asIntBuffer().get( v );
+			fdl.newInt( name ).ourVals = v;
+			break;
+		    }
+		    case T_DECIMAL: {
+			if (length%8!=0)
+			    throw new IOException("Corrupt entry "+name+": length "+length+" is not whole doubles");
+			Conf.DoubleEntry de = fdl.newDbl( name );
+			de.setView( payload.asDoubleBuffer() );
+			de.setExactOutput( (flags & F_EXACT)!=0 );
+			break;
+		    }
+		    case T_STRING:
+			fdl.newStr( name ).val( utf8( payload, (int)length ));
+			break;
+		    case T_DATA:
+			fdl.newData( name ).setView( payload ).setCodec( codec );
+			break;
+		    default:
+			throw new IOException("Unknown entry type "+type+" for "+name);
+		}
+	    }
+	    return cfg;
+
+	} catch (IOException e) {
+	    throw new Conf.SomeIOException(e);
+	} catch (IllegalArgumentException e) {
+	    throw new Conf.SomeIOException(e);	// unknown codec
+	} catch (java.nio.BufferUnderflowException e) {
+	    throw new Conf.SomeIOException(new IOException("Binary config file truncated"));
+	}
+    }
+
+
+    /** Convert between XML and binary files (by file extension: '.xml' is XML) */
+    public static void main( String [] args ) throws Exception {
+	if (args.length!=2) {
+	    System.out.println("Usage: ConfBinary [input] [output]");
+	    System.out.println("  converts between XML (*.xml) and binary config files");
+	    return;
+	}
+	Conf cfg = (args[0].toLowerCase().endsWith(".xml"))?
+	    (Conf.loadFile( args[0] )):(load( args[0] ));
+	if (args[1].toLowerCase().endsWith(".xml"))
+	    cfg.saveFile( args[1] );
+	else
+	    save( cfg, args[1] );
+    }
+
+}
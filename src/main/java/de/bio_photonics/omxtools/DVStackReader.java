@@ -0,0 +1,329 @@
+package de.bio_photonics.omxtools;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.io.OpenDialog;
+import ij.process.ImageProcessor;
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+import ij.process.FloatProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+
+/** Minimal reader for DeltaVision (.dv) stacks, as written by the OMX.
+ *  The header is parsed once, and a plane-offset index is build, so
+ *  single planes can be read on demand without loading the whole
+ *  stack to memory.
+ *
+ *	For all the header bytes and magic number, see
+ *	'OMX-OTFs-Readme.md' and e.g. here:
+ *
+ *	https://github.com/openmicroscopy/bioformats/blob/v5.1.8/components/formats-gpl/src/loci/formats/in/DeltavisionReader.java
+ *	https://www.openmicroscopy.org/site/support/bio-formats5.1/formats/deltavision.html
+ *	http://rsb.info.nih.gov/ij/plugins/track/delta.html
+ *
+ *  */
+public class DVStackReader {
+
+    // DV pixel types
+    public static final int PXL_UINT8   = 0;
+    public static final int PXL_INT16   = 1;
+    public static final int PXL_FLOAT32 = 2;
+    public static final int PXL_CPLX16  = 3;
+    public static final int PXL_CPLX32  = 4;
+    public static final int PXL_UINT16  = 6;
+
+    final File fObj;
+    final Header header;
+    final long [] planeOffset;
+    final int planeBytes;
+
+    final RandomAccessFile raf;
+    final FileChannel channel;
+
+
+    /** The fixed-size (1024 bytes) DV header */
+    public static class Header {
+	public final int width, height, nrImg, pxlType, extHeader;
+	public final float pxlSizeX, pxlSizeY, pxlSizeZ;
+	public final int numTimes, numWaves, imageSequence;
+	public final ByteOrder order;
+
+	/** Parse the header from the first 1024 bytes of 'buf'.
+	 *  The byte order is detected from the DV stamp at byte #96,
+	 *  'buf' is left in that byte order. */
+	public Header( ByteBuffer buf ) throws IOException {
+
+	    if (buf.capacity()<1024) {
+		throw new IOException("File too short for DV header");
+	    }
+
+	    // the stamp reads 0xc0a0 in the file's native order
+	    buf.order( ByteOrder.LITTLE_ENDIAN );
+	    if ( buf.getShort(96) != (short)0xc0a0 ) {
+		buf.order( ByteOrder.BIG_ENDIAN );
+		if ( buf.getShort(96) != (short)0xc0a0 ) {
+		    // some OMX files come without stamp, these are little endian
+		    buf.order( ByteOrder.LITTLE_ENDIAN );
+		}
+	    }
+	    order = buf.order();
+
+	    // First 4 Ints: w, h, #images, plx_type
+	    width   = buf.getInt(0);
+	    height  = buf.getInt(4);
+	    nrImg   = buf.getInt(8);
+	    pxlType = buf.getInt(12);
+
+	    // pixel sizes
+	    pxlSizeX = buf.getFloat(40);
+	    pxlSizeY = buf.getFloat(44);
+	    pxlSizeZ = buf.getFloat(48);
+
+	    // At byte #92:  size of extended header
+	    extHeader = buf.getInt(92);
+
+	    // dimensions, and how they are ordered (0: ZTW, 1: WZT, 2: ZWT)
+	    numTimes      = buf.getShort(180);
+	    imageSequence = buf.getShort(182);
+	    numWaves      = buf.getShort(196);
+
+	    if ((width<=0)||(height<=0)||(nrImg<=0)||(extHeader<0)) {
+		throw new IOException("DV header corrupt: w,h,nrImg,lenHeader :"
+		    +width+" "+height+" "+nrImg+" "+extHeader);
+	    }
+	}
+
+	/** Offset of the first pixel, std header is 1024 bytes plus ext header size */
+	public long getDataOffset() {
+	    return 1024L + extHeader;
+	}
+
+	/** Bytes per pixel, for the pixel type in this file */
+	public int getBytesPerPixel() {
+	    switch (pxlType) {
+		case PXL_UINT8:	    return 1;
+		case PXL_INT16:	    return 2;
+		case PXL_UINT16:    return 2;
+		case PXL_FLOAT32:   return 4;
+		case PXL_CPLX16:    return 4;
+		case PXL_CPLX32:    return 8;
+	    }
+	    return -1;
+	}
+
+	/** Bytes per plane */
+	public int getPlaneBytes() {
+	    return width*height*getBytesPerPixel();
+	}
+
+	@Override
+	public String toString() {
+	    return "w,h,nrImg,Type, lenHeader :"+width+" "+height+" "+nrImg
+		+" "+pxlType+" "+extHeader+" ("+order+")";
+	}
+    }
+
+
+    /** Open a DV file, parse its header and build the plane index. */
+    public DVStackReader( File fObj ) throws IOException {
+	this.fObj = fObj;
+	raf = new RandomAccessFile( fObj, "r" );
+	channel = raf.getChannel();
+
+	try {
+	    ByteBuffer hdr = ByteBuffer.allocate(1024);
+	    readFully( hdr, 0 );
+	    header = new Header( hdr );
+
+	    if ( header.getBytesPerPixel() < 0 ) {
+		throw new IOException("Unsupported DV pixel type: "+header.pxlType);
+	    }
+
+	    // build the plane index
+	    planeBytes  = header.getPlaneBytes();
+	    planeOffset = new long[ header.nrImg ];
+	    for (int i=0; i<header.nrImg; i++) {
+		planeOffset[i] = header.getDataOffset() + (long)i*planeBytes;
+	    }
+
+	    if ( planeOffset[ header.nrImg-1 ] + planeBytes > channel.size() ) {
+		throw new IOException("File too short for "+header.nrImg+" planes");
+	    }
+	} catch (IOException e) {
+	    raf.close();
+	    throw e;
+	}
+    }
+
+    /** Show a file dialog, and open the selected file.
+     *  @return The reader, or 'null' if the dialog was canceled */
+    public static DVStackReader openDialog( String title ) throws IOException {
+	OpenDialog od = new OpenDialog( title, null );
+	if (od.getFileName()==null)
+	    return null;
+	return new DVStackReader( new File( od.getDirectory(), od.getFileName() ));
+    }
+
+    /** Fill 'buf' from position 'pos' of the file. This uses
+     *  positional reads only, so it can be called from several threads. */
+    private void readFully( ByteBuffer buf, long pos ) throws IOException {
+	while (buf.hasRemaining()) {
+	    int r = channel.read( buf, pos );
+	    if (r<0)
+		throw new IOException("Unexpected end of file");
+	    pos += r;
+	}
+	buf.flip();
+    }
+
+
+    /** Read plane 'n' (starting at 0) from disk. 16bit signed
+     *  and complex data is converted to float (complex: magnitude). */
+    public ImageProcessor readPlane( int n ) throws IOException {
+	if ((n<0)||(n>=header.nrImg))
+	    throw new IndexOutOfBoundsException("Plane "+n+" not in [0,"+header.nrImg+")");
+
+	final int w = header.width, h = header.height;
+	ByteBuffer buf = ByteBuffer.allocate( planeBytes );
+	readFully( buf, planeOffset[n] );
+	buf.order( header.order );
+
+	switch (header.pxlType) {
+	    case PXL_UINT8: {
+		return new ByteProcessor( w, h, buf.array(), null );
+	    }
+	    case PXL_UINT16: {
+		short [] pxl = new short[ w*h ];
+		buf.asShortBuffer().get( pxl );
+		return new ShortProcessor( w, h, pxl, null );
+	    }
+	    case PXL_INT16: {
+		float [] pxl = new float[ w*h ];
+		for (int i=0; i<w*h; i++)
+		    pxl[i] = buf.getShort( 2*i );
+		return new FloatProcessor( w, h, pxl, null );
+	    }
+	    case PXL_FLOAT32: {
+		float [] pxl = new float[ w*h ];
+		buf.asFloatBuffer().get( pxl );
+		return new FloatProcessor( w, h, pxl, null );
+	    }
+	    case PXL_CPLX16: {
+		float [] pxl = new float[ w*h ];
+		for (int i=0; i<w*h; i++)
+		    pxl[i] = (float)Math.hypot( buf.getShort(4*i), buf.getShort(4*i+2) );
+		return new FloatProcessor( w, h, pxl, null );
+	    }
+	    case PXL_CPLX32: {
+		float [] pxl = new float[ w*h ];
+		for (int i=0; i<w*h; i++)
+		    pxl[i] = (float)Math.hypot( buf.getFloat(8*i), buf.getFloat(8*i+4) );
+		return new FloatProcessor( w, h, pxl, null );
+	    }
+	}
+	throw new IOException("Unsupported DV pixel type: "+header.pxlType);
+    }
+
+    /** Returns a virtual stack that reads planes on demand from this file.
+     *  The stack is only valid until 'close()' is called. */
+    public VirtualStack getStack() {
+	return new DVVirtualStack();
+    }
+
+    /** Returns 'view' copied into memory if it is a view of a stack of
+     *  a DV file ('source'), so it stays valid after the file is closed.
+     *  Other stacks are returned as they are. */
+    static ImageStack detach( ImageStack view, ImageStack source ) {
+	if (view instanceof ReorderedStack && source instanceof DVVirtualStack)
+	    return ((ReorderedStack)view).toMemory();
+	return view;
+    }
+
+    /** Close the file */
+    public void close() throws IOException {
+	raf.close();
+    }
+
+    // ------ access routines ------
+
+    public Header getHeader() {
+	return header;
+    }
+
+    public int getWidth() {
+	return header.width;
+    }
+
+    public int getHeight() {
+	return header.height;
+    }
+
+    public int getSize() {
+	return header.nrImg;
+    }
+
+    /** Offset (in bytes) of plane 'n' in the file */
+    public long getPlaneOffset(int n) {
+	return planeOffset[n];
+    }
+
+    public String getName() {
+	return fObj.getName();
+    }
+
+
+    /** ImageJ view of the file, reading planes on demand */
+    class DVVirtualStack extends VirtualStack {
+
+	DVVirtualStack() {
+	    super( header.width, header.height, null, null );
+	}
+
+	@Override
+	public ImageProcessor getProcessor( int n ) {
+	    try {
+		return readPlane( n-1 );
+	    } catch (IOException e) {
+		throw new RuntimeException( e );
+	    }
+	}
+
+	@Override
+	public Object getPixels( int n ) {
+	    return getProcessor(n).getPixels();
+	}
+
+	@Override
+	public int getSize() {
+	    return header.nrImg;
+	}
+
+	@Override
+	public String getSliceLabel( int n ) {
+	    return fObj.getName()+" #"+n;
+	}
+
+	@Override
+	public String getDirectory() {
+	    return fObj.getParent();
+	}
+
+	@Override
+	public String getFileName( int n ) {
+	    return fObj.getName();
+	}
+
+	@Override
+	public void deleteSlice( int n ) {
+	    throw new UnsupportedOperationException("DV stacks are read-only");
+	}
+    }
+
+}
@@ -0,0 +1,379 @@
+package de.bio_photonics.omxtools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/** Codecs for the content of {@link Conf.DataEntry}, selected by the
+ *  'codec' attribute of a data element. The raw bytes are split into
+ *  chunks, which are packed (and unpacked) independently and in parallel.
+ *
+ *  Encoded layout (big endian, as the data itself):
+ *  <pre>
+ *  int32   length of the raw data (bytes)
+ *  int32   chunk size (raw bytes)
+ *  per chunk: int32 packed length, followed by the packed bytes
+ *  </pre>
+ *  Available codecs:
+ *  <ul>
+ *  <li>"deflate": each chunk is deflated
+ *  <li>"shuffle-deflate": bytes of 4-byte values (floats, ints) are
+ *	grouped by significance before deflating, which compresses
+ *	float arrays better
+ *  <li>"float16": lossy, big-endian floats are rounded to half precision,
+ *	then shuffled and deflated. The data length has to be a multiple of 4.
+ *  </ul>
+ *  */
+public abstract class DataCodec {
+
+    static final int CHUNK_BYTES = 1<<20;
+
+    public static final DataCodec DEFLATE = new DataCodec("deflate") {
+	@Override
+	byte [] pack( byte [] in, int off, int len ) {
+	    return deflate( in, off, len );
+	}
+	@Override
+	void unpack( byte [] in, int off, int len, byte [] out, int op, int rawLen )
+	    throws DataFormatException {
+	    inflate( in, off, len, out, op, rawLen );
+	}
+    };
+
+    public static final DataCodec SHUFFLE_DEFLATE = new DataCodec("shuffle-deflate") {
+	@Override
+	byte [] pack( byte [] in, int off, int len ) {
+	    byte [] tmp = new byte[len];
+	    shuffle( in, off, len, tmp, 4 );
+	    return deflate( tmp, 0, len );
+	}
+	@Override
+	void unpack( byte [] in, int off, int len, byte [] out, int op, int rawLen )
+	    throws DataFormatException {
+	    byte [] tmp = new byte[ rawLen ];
+	    inflate( in, off, len, tmp, 0, rawLen );
+	    unshuffle( tmp, rawLen, out, op, 4 );
+	}
+    };
+
+    public static final DataCodec FLOAT16 = new DataCodec("float16") {
+	@Override
+	byte [] pack( byte [] in, int off, int len ) {
+	    if (len%4!=0)
+		throw new IllegalArgumentException("float16 codec: length not a multiple of 4");
+	    final int n = len/4;
+	    byte [] half = new byte[ 2*n ];
+	    for (int i=0; i<n; i++) {
+		final int p = off+4*i;
+		final int bits = ((in[p]&0xff)<<24) | ((in[p+1]&0xff)<<16) |
+		    ((in[p+2]&0xff)<<8) | (in[p+3]&0xff);
+		final int h = toHalf( bits );
+		half[2*i  ] = (byte)(h>>>8);
+		half[2*i+1] = (byte) h;
+	    }
+	    byte [] tmp = new byte[ 2*n ];
+	    shuffle( half, 0, 2*n, tmp, 2 );
+	    return deflate( tmp, 0, 2*n );
+	}
+	@Override
+	void unpack( byte [] in, int off, int len, byte [] out, int op, int rawLen )
+	    throws DataFormatException {
+	    final int n = rawLen/4;
+	    byte [] tmp  = new byte[ 2*n ];
+	    byte [] half = new byte[ 2*n ];
+	    inflate( in, off, len, tmp, 0, 2*n );
+	    unshuffle( tmp, 2*n, half, 0, 2 );
+	    for (int i=0; i<n; i++) {
+		final int bits = fromHalf( ((half[2*i]&0xff)<<8) | (half[2*i+1]&0xff) );
+		out[op++] = (byte)(bits>>>24);
+		out[op++] = (byte)(bits>>>16);
+		out[op++] = (byte)(bits>>> 8);
+		out[op++] = (byte) bits;
+	    }
+	}
+    };
+
+    private static final DataCodec [] all = { DEFLATE, SHUFFLE_DEFLATE, FLOAT16 };
+
+    final String name;
+
+    private DataCodec( String name ) {
+	this.name = name;
+    }
+
+    /** Returns the codec 'name', or null for "none" (or null, or empty).
+     *  @throws IllegalArgumentException if the codec is unknown */
+    public static DataCodec forName( String name ) {
+	if (name==null || name.length()==0 || name.equals("none"))
+	    return null;
+	for ( DataCodec c : all )
+	    if (c.name.equals( name ))
+		return c;
+	throw new IllegalArgumentException("Unknown data codec: "+name);
+    }
+
+    /** Names of all available codecs, including "none" */
+    public static String [] getNames() {
+	String [] ret = new String[ all.length+1 ];
+	ret[0] = "none";
+	for (int i=0; i<all.length; i++)
+	    ret[i+1] = all[i].name;
+	return ret;
+    }
+
+    /** Returns the name of the codec, as stored in the 'codec' attribute */
+    public String getName() {
+	return name;
+    }
+
+    @Override
+    public String toString() {
+	return name;
+    }
+
+    /** Pack one chunk */
+    abstract byte [] pack( byte [] in, int off, int len );
+
+    /** Unpack one chunk into 'out' at 'op', which has to yield 'rawLen' bytes */
+    abstract void unpack( byte [] in, int off, int len, byte [] out, int op, int rawLen )
+	throws DataFormatException;
+
+
+    // ------ encoding / decoding ------
+
+    /** Encode 'raw' */
+    public byte [] encode( byte [] raw ) {
+	ByteArrayOutputStream bo = new ByteArrayOutputStream( raw.length/2+16 );
+	try {
+	    OutputStream enc = encodingStream( raw.length, bo );
+	    enc.write( raw );
+	    enc.close();
+	} catch (IOException e) {
+	    throw new RuntimeException( e );	// not on byte arrays
+	}
+	return bo.toByteArray();
+    }
+
+    /** Returns a stream that encodes the 'rawLength' bytes written to it
+     *  into 'out'. Chunks are packed in parallel batches. 'close()' writes
+     *  the last chunk, but does not close 'out'. */
+    public OutputStream encodingStream( final int rawLength, final OutputStream out )
+	throws IOException {
+
+	final int nrBatch = Math.max( 1, SimpleMT.getNrThreads() );
+	final int chunk = CHUNK_BYTES;
+	final byte [] buf = new byte[ (int)Math.min( (long)chunk*nrBatch, Math.max( rawLength, 1 )) ];
+
+	out.write( intBytes( rawLength ));
+	out.write( intBytes( chunk ));
+
+	return new OutputStream() {
+	    int len = 0;
+	    long total = 0;
+
+	    @Override
+	    public void write( int b ) throws IOException {
+		write( new byte [] { (byte)b }, 0, 1 );
+	    }
+
+	    @Override
+	    public void write( byte [] b, int off, int l ) throws IOException {
+		while (l>0) {
+		    final int c = Math.min( l, buf.length-len );
+		    System.arraycopy( b, off, buf, len, c );
+		    len+=c; off+=c; l-=c;
+		    if (len == buf.length)
+			flushBatch();
+		}
+	    }
+
+	    void flushBatch() throws IOException {
+		final int n = (len+chunk-1)/chunk;
+		final byte [][] packed = new byte[n][];
+		new SimpleMT.PFor( 0, n ) {
+		    @Override
+		    public void at( int i ) {
+			packed[i] = pack( buf, i*chunk, Math.min( chunk, len-i*chunk ));
+		    }
+		}.run();
+		for ( byte [] p : packed ) {
+		    out.write( intBytes( p.length ));
+		    out.write( p );
+		}
+		total += len;
+		len = 0;
+	    }
+
+	    @Override
+	    public void close() throws IOException {
+		if (len>0)
+		    flushBatch();
+		if (total != rawLength)
+		    throw new IOException("Codec "+name+": got "+total+" bytes, expected "+rawLength);
+	    }
+	};
+    }
+
+    /** Decode 'enc', which was created by this codec */
+    public byte [] decode( final byte [] enc ) throws Conf.SomeIOException {
+	try {
+	    final ByteBuffer bb = ByteBuffer.wrap( enc );
+	    final int rawLength = bb.getInt();
+	    final int chunk = bb.getInt();
+	    if (rawLength<0 || chunk<=0)
+		throw new DataFormatException("Codec "+name+": corrupt header");
+	    final int n = (int)(((long)rawLength+chunk-1)/chunk);
+
+	    // find the chunks (sequential, only reads the lengths)
+	    final int [] pos = new int[n], len = new int[n];
+	    for (int i=0; i<n; i++) {
+		len[i] = bb.getInt();
+		pos[i] = bb.position();
+		if (len[i]<0 || len[i] > bb.remaining())
+		    throw new DataFormatException("Codec "+name+": chunk "+i+" truncated");
+		bb.position( pos[i]+len[i] );
+	    }
+
+	    final byte [] out = new byte[ rawLength ];
+	    new SimpleMT.PFor( 0, n ) {
+		@Override
+		public void at( int i ) {
+		    try {
+			unpack( enc, pos[i], len[i], out, i*chunk,
+			    Math.min( chunk, rawLength-i*chunk ));
+		    } catch (DataFormatException e) {
+			throw new RuntimeException( e );
+		    }
+		}
+	    }.run();
+	    return out;
+
+	} catch (DataFormatException e) {
+	    throw new Conf.SomeIOException( e );
+	} catch (java.nio.BufferUnderflowException e) {
+	    throw new Conf.SomeIOException( new DataFormatException("Codec "+name+": data truncated"));
+	} catch (RuntimeException e) {
+	    if (e.getCause() instanceof DataFormatException)
+		throw new Conf.SomeIOException( (DataFormatException)e.getCause() );
+	    throw e;
+	}
+    }
+
+    /** Raw length stored in the header of encoded data */
+    static int rawLength( byte [] header ) {
+	return ByteBuffer.wrap( header ).getInt();
+    }
+
+    static byte [] intBytes( int v ) {
+	return new byte [] { (byte)(v>>>24), (byte)(v>>>16), (byte)(v>>>8), (byte)v };
+    }
+
+
+    // ------ building blocks ------
+
+    static byte [] deflate( byte [] in, int off, int len ) {
+	Deflater d = new Deflater();
+	try {
+	    d.setInput( in, off, len );
+	    d.finish();
+	    byte [] out = new byte[ len/2 + 64 ];
+	    int ol = 0;
+	    while (!d.finished()) {
+		if (ol == out.length)
+		    out = java.util.Arrays.copyOf( out, out.length*2 );
+		ol += d.deflate( out, ol, out.length-ol );
+	    }
+	    return java.util.Arrays.copyOf( out, ol );
+	} finally {
+	    d.end();
+	}
+    }
+
+    static void inflate( byte [] in, int off, int len, byte [] out, int op, int rawLen )
+	throws DataFormatException {
+	Inflater inf = new Inflater();
+	try {
+	    inf.setInput( in, off, len );
+	    int ol = 0;
+	    while (ol < rawLen && !inf.finished()) {
+		final int r = inf.inflate( out, op+ol, rawLen-ol );
+		if (r==0 && (inf.needsInput() || inf.needsDictionary()))
+		    break;
+		ol += r;
+	    }
+	    if (ol != rawLen || !inf.finished())
+		throw new DataFormatException("Chunk inflated to wrong length");
+	} finally {
+	    inf.end();
+	}
+    }
+
+    /** group the bytes of 'size'-byte values by significance */
+    static void shuffle( byte [] in, int off, int len, byte [] out, int size ) {
+	final int n = len/size;
+	for (int j=0; j<size; j++)
+	    for (int i=0; i<n; i++)
+		out[ j*n + i ] = in[ off + i*size + j ];
+	System.arraycopy( in, off+n*size, out, n*size, len-n*size );
+    }
+
+    /** inverse of 'shuffle' */
+    static void unshuffle( byte [] in, int len, byte [] out, int op, int size ) {
+	final int n = len/size;
+	for (int j=0; j<size; j++)
+	    for (int i=0; i<n; i++)
+		out[ op + i*size + j ] = in[ j*n + i ];
+	System.arraycopy( in, n*size, out, op+n*size, len-n*size );
+    }
+
+    /** float bits to half precision bits, rounding to nearest even */
+    static int toHalf( int bits ) {
+	final int sign = (bits>>>16) & 0x8000;
+	final int val  = bits & 0x7fffffff;
+
+	// NaN, infinity, and too large values
+	if (val >= 0x47800000) {
+	    if (val > 0x7f800000)
+		return sign | 0x7e00;
+	    return sign | 0x7c00;
+	}
+	// normal half
+	if (val >= 0x38800000) {
+	    int h = (val - 0x38000000) >>> 13;
+	    final int rem = val & 0x1fff;
+	    if (rem > 0x1000 || (rem == 0x1000 && (h&1)!=0))
+		h++;	// might carry into the exponent, which is correct
+	    return sign | h;
+	}
+	// sub-normal half, or zero
+	if (val < 0x33000000)
+	    return sign;
+	final int e = val>>>23;
+	final int m = (val & 0x7fffff) | 0x800000;
+	final int shift = 126-e;
+	int h = m >>> shift;
+	final int rem = m & ((1<<shift)-1);
+	final int halfway = 1<<(shift-1);
+	if (rem > halfway || (rem == halfway && (h&1)!=0))
+	    h++;
+	return sign | h;
+    }
+
+    /** half precision bits to float bits */
+    static int fromHalf( int h ) {
+	final int sign = (h & 0x8000)<<16;
+	final int exp  = (h>>>10) & 0x1f;
+	final int m    = h & 0x3ff;
+	if (exp==0)
+	    return sign | Float.floatToRawIntBits( m * (1.f/(1<<24)) );
+	if (exp==31)
+	    return sign | 0x7f800000 | (m<<13);
+	return sign | ((exp+112)<<23) | (m<<13);
+    }
+
+}
@@ -0,0 +1,171 @@
+package de.bio_photonics.omxtools;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/** Edge-taper (apodization) window along one axis, sin^2 over 'px'
+ *  pixels at both ends. Windows are precomputed once per (length, px)
+ *  and cached, 2D windows are applied separably (as row x column factor). */
+public final class EdgeTaper {
+
+    final int len, px;
+    final float [] lo;		// factor for the lower edge (1 elsewhere)
+    final float [] hi;		// factor for the upper edge (1 elsewhere)
+    final float [] both;	// lo*hi
+
+    // recently used windows, usually only a few sizes are in use
+    private static final Map<Long,EdgeTaper> cache =
+	new LinkedHashMap<Long,EdgeTaper>(16, 0.75f, true) {
+	    @Override
+	    protected boolean removeEldestEntry( Map.Entry<Long,EdgeTaper> e ) {
+		return size()>32;
+	    }
+	};
+
+    private EdgeTaper( int len, int px ) {
+	this.len = len;
+	this.px  = px;
+	lo   = new float[len];
+	hi   = new float[len];
+	both = new float[len];
+
+	final double fac = 1./px * Math.PI/2.;
+	for (int i=0; i<len; i++) {
+	    lo[i] = (i<px)?((float)Math.pow( Math.sin( i * fac ), 2 )):(1.f);
+	    hi[i] = (i>=len-px)?((float)Math.pow( Math.sin( (len-i-1) * fac ), 2 )):(1.f);
+	    both[i] = lo[i]*hi[i];
+	}
+    }
+
+    /** Returns the window for 'len' pixels, tapering 'px' pixels at each end */
+    public static EdgeTaper get( int len, int px ) {
+	px = Math.max( 0, Math.min( px, len ));
+	final Long key = ((long)len<<32) | px;
+	synchronized (cache) {
+	    EdgeTaper ret = cache.get( key );
+	    if (ret==null) {
+		ret = new EdgeTaper( len, px );
+		cache.put( key, ret );
+	    }
+	    return ret;
+	}
+    }
+
+    /** Returns the factor at position 'i' (both edges applied) */
+    public float get( int i ) {
+	return both[i];
+    }
+
+
+    // ------ applying the window ------
+
+    /** Fade the edges of the w x h area of 'ip', like
+     *  {@link OMX_Splitter#fadeEdges}: top, bottom, left and right
+     *  edges are multiplied one after another. */
+    public static void fadeEdges( ImageProcessor ip, int px, final int w, final int h ) {
+	final EdgeTaper wx = get( w, px ), wy = get( h, px );
+	final int ipw = ip.getWidth();
+
+	if (ip instanceof FloatProcessor) {
+	    final float [] p = (float [])ip.getPixels();
+	    for (int y=0; y<h; y++) {
+		final int row = y*ipw;
+		if (y<wy.px)
+		    for (int x=0; x<w; x++) p[row+x] *= wy.lo[y];
+		if (y>=h-wy.px)
+		    for (int x=0; x<w; x++) p[row+x] *= wy.hi[y];
+	    }
+	    for (int y=0; y<h; y++) {
+		final int row = y*ipw;
+		for (int x=0; x<wx.px; x++) p[row+x] *= wx.lo[x];
+		for (int x=w-wx.px; x<w; x++) p[row+x] *= wx.hi[x];
+	    }
+	    return;
+	}
+
+	// other types round on every store, so keep the order of passes
+	for (int y=0; y<wy.px; y++)
+	    for (int x=0; x<w; x++)
+		ip.setf( x,y, ip.getf(x,y)*wy.lo[y] );
+	for (int y=h-wy.px; y<h; y++)
+	    for (int x=0; x<w; x++)
+		ip.setf( x,y, ip.getf(x,y)*wy.hi[y] );
+	for (int y=0; y<h; y++)
+	    for (int x=0; x<wx.px; x++)
+		ip.setf( x,y, ip.getf(x,y)*wx.lo[x] );
+	for (int y=0; y<h; y++)
+	    for (int x=w-wx.px; x<w; x++)
+		ip.setf( x,y, ip.getf(x,y)*wx.hi[x] );
+    }
+
+    /** Zero-pad a w x h frame (byte[], short[] (both unsigned) or float[]
+     *  pixels) by factor 'f', centered as in OMX_Splitter.get2Dstack. If
+     *  'px' is positive, edges are tapered over 'px' pixels while copying.
+     *  Returns a FloatProcessor if 'floatOut' is set, a ShortProcessor
+     *  (values rounded) otherwise. */
+    public static ImageProcessor pad( Object pixels, final int w, final int h, final int f,
+	final int px, final boolean floatOut ) {
+
+	final int outW = f*w, outH = f*h;
+	final int ox = (f-1)*(w/2), oy = (f-1)*(h/2);
+	final EdgeTaper wx = get( w, px ), wy = get( h, px );
+	final boolean taper = (wx.px>0 || wy.px>0);
+
+	// one input row, as float
+	final float [] row = new float[w];
+
+	if (floatOut) {
+	    final float [] out = new float[ outW*outH ];
+	    for (int y=0; y<h; y++) {
+		getRow( pixels, y, w, row );
+		final int op = (y+oy)*outW + ox;
+		if (taper) {
+		    final float fy = wy.both[y];
+		    for (int x=0; x<w; x++)
+			out[op+x] = row[x]*fy*wx.both[x];
+		} else {
+		    System.arraycopy( row, 0, out, op, w );
+		}
+	    }
+	    return new FloatProcessor( outW, outH, out, null );
+	}
+
+	final short [] out = new short[ outW*outH ];
+	for (int y=0; y<h; y++) {
+	    final int op = (y+oy)*outW + ox;
+	    if (!taper && pixels instanceof short []) {
+		System.arraycopy( (short [])pixels, y*w, out, op, w );
+		continue;
+	    }
+	    getRow( pixels, y, w, row );
+	    final float fy = (taper)?(wy.both[y]):(1.f);
+	    for (int x=0; x<w; x++) {
+		final float v = (taper)?(row[x]*fy*wx.both[x]):(row[x]);
+		out[op+x] = (short)(int)(v+0.5f);	// as ShortProcessor.setf
+	    }
+	}
+	return new ShortProcessor( outW, outH, out, null );
+    }
+
+    /** copy row 'y' of 'pixels' into 'row' */
+    static void getRow( Object pixels, int y, int w, float [] row ) {
+	final int off = y*w;
+	if (pixels instanceof short []) {
+	    final short [] p = (short [])pixels;
+	    for (int x=0; x<w; x++) row[x] = p[off+x]&0xffff;
+	} else if (pixels instanceof byte []) {
+	    final byte [] p = (byte [])pixels;
+	    for (int x=0; x<w; x++) row[x] = p[off+x]&0xff;
+	} else if (pixels instanceof float []) {
+	    System.arraycopy( (float [])pixels, off, row, 0, w );
+	} else {
+	    throw new IllegalArgumentException("Unsupported pixel type");
+	}
+    }
+
+}
@@ -0,0 +1,394 @@
+package de.bio_photonics.omxtools;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/** Complex and real-to-complex FFT of any length (mixed radix, with
+ *  butterflies for radix 2, 3, 4, 5 and a generic one for other
+ *  primes). Complex data is stored interleaved (re, im). A plan
+ *  (factors and twiddles) is computed once per length and cached.
+ *  The forward transform uses exp(-2 pi i jk/n) and is not scaled,
+ *  the inverse is scaled by 1/n. 2D and 3D transforms run in
+ *  parallel over rows, columns and planes. */
+public final class FFT {
+
+    final int n;
+    final int [] factors;	// radices, in the order they are used
+    final float [] tw;		// exp(-2 pi i k/n), interleaved
+    private float [] realTw;	// exp(-2 pi i k/n) for k<=n/2, for real input
+
+    private static final Map<Integer,FFT> cache =
+	new LinkedHashMap<Integer,FFT>(16, 0.75f, true) {
+	    @Override
+	    protected boolean removeEldestEntry( Map.Entry<Integer,FFT> e ) {
+		return size()>32;
+	    }
+	};
+
+    // scratch buffer, per thread
+    private static final ThreadLocal<float []> scratch = new ThreadLocal<float []>();
+
+    private FFT( int n ) {
+	this.n = n;
+	this.factors = factorize( n );
+	this.tw = twiddles( n, n );
+    }
+
+    /** Returns the (cached) plan for length 'n' */
+    public static FFT get( int n ) {
+	if (n<1)
+	    throw new IllegalArgumentException("FFT length has to be positive");
+	synchronized (cache) {
+	    FFT ret = cache.get( n );
+	    if (ret==null) {
+		ret = new FFT( n );
+		cache.put( n, ret );
+	    }
+	    return ret;
+	}
+    }
+
+    /** Length of this transform */
+    public int size() {
+	return n;
+    }
+
+    /** split n into radices: 4s first, then 2, 3, 5 and other primes */
+    static int [] factorize( int n ) {
+	int [] f = new int[32];
+	int k=0;
+	while (n%4==0) { f[k++]=4; n/=4; }
+	while (n%2==0) { f[k++]=2; n/=2; }
+	for (int p=3; n>1; p+=2) {
+	    while (n%p==0) { f[k++]=p; n/=p; }
+	    if (p>n/p && n>1) { f[k++]=n; n=1; }
+	}
+	if (k==0) f[k++]=1;
+	return java.util.Arrays.copyOf( f, k );
+    }
+
+    /** exp(-2 pi i k/n) for k < len, interleaved */
+    static float [] twiddles( int n, int len ) {
+	float [] ret = new float[ 2*len ];
+	for (int k=0; k<len; k++) {
+	    final double phi = -2*Math.PI*k/n;
+	    ret[2*k]   = (float)Math.cos( phi );
+	    ret[2*k+1] = (float)Math.sin( phi );
+	}
+	return ret;
+    }
+
+    static float [] getScratch( int len ) {
+	float [] s = scratch.get();
+	if (s==null || s.length < len) {
+	    s = new float[ len ];
+	    scratch.set( s );
+	}
+	return s;
+    }
+
+
+    // ------ 1D complex ------
+
+    /** Transform the n complex values (interleaved) in 'data', in place */
+    public void transform( float [] data, boolean inverse ) {
+	transform( data, 0, inverse );
+    }
+
+    /** Transform the n complex values (interleaved) starting at
+     *  data[off], in place */
+    public void transform( float [] data, int off, boolean inverse ) {
+	if (n==1) return;
+	final float [] tmp = getScratch( 2*n );
+	System.arraycopy( data, off, tmp, 0, 2*n );
+
+	// the inverse is the conjugate of the forward of the conjugate
+	if (inverse)
+	    for (int i=1; i<2*n; i+=2) tmp[i] = -tmp[i];
+
+	work( data, off/2, tmp, 0, 1, 0 );
+
+	if (inverse) {
+	    final float s = 1.f/n;
+	    for (int i=0; i<2*n; i+=2) {
+		data[off+i]   *=  s;
+		data[off+i+1] *= -s;
+	    }
+	}
+    }
+
+    /** recursive decimation in time, from 'in' (stride 'fs') to 'out' (contiguous),
+     *  'oo' and 'io' are complex offsets */
+    private void work( float [] out, int oo, float [] in, int io, int fs, int stage ) {
+	final int p = factors[stage];
+	final int m = n/(fs*p);
+
+	if (m==1) {
+	    for (int q=0; q<p; q++) {
+		out[2*(oo+q)]   = in[2*(io+q*fs)];
+		out[2*(oo+q)+1] = in[2*(io+q*fs)+1];
+	    }
+	} else {
+	    for (int q=0; q<p; q++)
+		work( out, oo+q*m, in, io+q*fs, fs*p, stage+1 );
+	}
+
+	switch (p) {
+	    case 2: butterfly2( out, oo, fs, m ); break;
+	    case 3: butterfly3( out, oo, fs, m ); break;
+	    case 4: butterfly4( out, oo, fs, m ); break;
+	    case 5: butterfly5( out, oo, fs, m ); break;
+	    default: butterflyGeneric( out, oo, fs, m, p );
+	}
+    }
+
+    private void butterfly2( float [] d, int oo, int fs, int m ) {
+	for (int k=0; k<m; k++) {
+	    final int a = 2*(oo+k), b = 2*(oo+k+m), t = 2*k*fs;
+	    final float tr = d[b]*tw[t] - d[b+1]*tw[t+1];
+	    final float ti = d[b]*tw[t+1] + d[b+1]*tw[t];
+	    d[b]   = d[a]-tr;
+	    d[b+1] = d[a+1]-ti;
+	    d[a]   += tr;
+	    d[a+1] += ti;
+	}
+    }
+
+    private void butterfly3( float [] d, int oo, int fs, int m ) {
+	final float s = (float)(Math.sqrt(3)/2);
+	for (int k=0; k<m; k++) {
+	    final int a0 = 2*(oo+k), a1 = 2*(oo+k+m), a2 = 2*(oo+k+2*m);
+	    final int t1 = 2*k*fs, t2 = 4*k*fs;
+	    final float r1 = d[a1]*tw[t1] - d[a1+1]*tw[t1+1];
+	    final float i1 = d[a1]*tw[t1+1] + d[a1+1]*tw[t1];
+	    final float r2 = d[a2]*tw[t2] - d[a2+1]*tw[t2+1];
+	    final float i2 = d[a2]*tw[t2+1] + d[a2+1]*tw[t2];
+	    final float tr = r1+r2, ti = i1+i2;
+	    final float dr = r1-r2, di = i1-i2;
+	    final float mr = d[a0]-tr/2, mi = d[a0+1]-ti/2;
+	    d[a0]   += tr;
+	    d[a0+1] += ti;
+	    d[a1]   = mr + s*di;
+	    d[a1+1] = mi - s*dr;
+	    d[a2]   = mr - s*di;
+	    d[a2+1] = mi + s*dr;
+	}
+    }
+
+    private void butterfly4( float [] d, int oo, int fs, int m ) {
+	for (int k=0; k<m; k++) {
+	    final int a0 = 2*(oo+k), a1 = 2*(oo+k+m), a2 = 2*(oo+k+2*m), a3 = 2*(oo+k+3*m);
+	    final int t1 = 2*k*fs, t2 = 4*k*fs, t3 = 6*k*fs;
+	    final float r1 = d[a1]*tw[t1] - d[a1+1]*tw[t1+1];
+	    final float i1 = d[a1]*tw[t1+1] + d[a1+1]*tw[t1];
+	    final float r2 = d[a2]*tw[t2] - d[a2+1]*tw[t2+1];
+	    final float i2 = d[a2]*tw[t2+1] + d[a2+1]*tw[t2];
+	    final float r3 = d[a3]*tw[t3] - d[a3+1]*tw[t3+1];
+	    final float i3 = d[a3]*tw[t3+1] + d[a3+1]*tw[t3];
+	    final float s0r = d[a0]+r2, s0i = d[a0+1]+i2;
+	    final float s1r = d[a0]-r2, s1i = d[a0+1]-i2;
+	    final float s2r = r1+r3, s2i = i1+i3;
+	    final float s3r = r1-r3, s3i = i1-i3;
+	    d[a0]   = s0r+s2r;
+	    d[a0+1] = s0i+s2i;
+	    d[a2]   = s0r-s2r;
+	    d[a2+1] = s0i-s2i;
+	    // -i*s3 for y1, +i*s3 for y3
+	    d[a1]   = s1r+s3i;
+	    d[a1+1] = s1i-s3r;
+	    d[a3]   = s1r-s3i;
+	    d[a3+1] = s1i+s3r;
+	}
+    }
+
+    private void butterfly5( float [] d, int oo, int fs, int m ) {
+	final float c1 = (float)Math.cos(2*Math.PI/5), s1 = (float)Math.sin(2*Math.PI/5);
+	final float c2 = (float)Math.cos(4*Math.PI/5), s2 = (float)Math.sin(4*Math.PI/5);
+	final float [] r = new float[5], i = new float[5];
+	for (int k=0; k<m; k++) {
+	    r[0] = d[2*(oo+k)];
+	    i[0] = d[2*(oo+k)+1];
+	    for (int q=1; q<5; q++) {
+		final int a = 2*(oo+k+q*m), t = 2*q*k*fs;
+		r[q] = d[a]*tw[t] - d[a+1]*tw[t+1];
+		i[q] = d[a]*tw[t+1] + d[a+1]*tw[t];
+	    }
+	    final float b1r = r[1]+r[4], b1i = i[1]+i[4], d1r = r[1]-r[4], d1i = i[1]-i[4];
+	    final float b2r = r[2]+r[3], b2i = i[2]+i[3], d2r = r[2]-r[3], d2i = i[2]-i[3];
+
+	    final float m1r = r[0] + c1*b1r + c2*b2r, m1i = i[0] + c1*b1i + c2*b2i;
+	    final float m2r = r[0] + c2*b1r + c1*b2r, m2i = i[0] + c2*b1i + c1*b2i;
+	    // -i*(s1*d1 + s2*d2) and -i*(s2*d1 - s1*d2)
+	    final float n1r = s1*d1r + s2*d2r, n1i = s1*d1i + s2*d2i;
+	    final float n2r = s2*d1r - s1*d2r, n2i = s2*d1i - s1*d2i;
+
+	    d[2*(oo+k)]   = r[0]+b1r+b2r;
+	    d[2*(oo+k)+1] = i[0]+b1i+b2i;
+	    d[2*(oo+k+m)]   = m1r + n1i;
+	    d[2*(oo+k+m)+1] = m1i - n1r;
+	    d[2*(oo+k+4*m)]   = m1r - n1i;
+	    d[2*(oo+k+4*m)+1] = m1i + n1r;
+	    d[2*(oo+k+2*m)]   = m2r + n2i;
+	    d[2*(oo+k+2*m)+1] = m2i - n2r;
+	    d[2*(oo+k+3*m)]   = m2r - n2i;
+	    d[2*(oo+k+3*m)+1] = m2i + n2r;
+	}
+    }
+
+    private void butterflyGeneric( float [] d, int oo, int fs, int m, int p ) {
+	final float [] s = new float[ 2*p ];
+	final int np = n/p;	// tw index of exp(-2 pi i/p)
+	for (int k=0; k<m; k++) {
+	    for (int q=0; q<p; q++) {
+		final int a = 2*(oo+k+q*m), t = 2*((q*k*fs)%n);
+		s[2*q]   = d[a]*tw[t] - d[a+1]*tw[t+1];
+		s[2*q+1] = d[a]*tw[t+1] + d[a+1]*tw[t];
+	    }
+	    for (int r=0; r<p; r++) {
+		float yr=0, yi=0;
+		for (int q=0; q<p; q++) {
+		    final int t = 2*(((q*r)%p)*np);
+		    yr += s[2*q]*tw[t] - s[2*q+1]*tw[t+1];
+		    yi += s[2*q]*tw[t+1] + s[2*q+1]*tw[t];
+		}
+		d[2*(oo+k+r*m)]   = yr;
+		d[2*(oo+k+r*m)+1] = yi;
+	    }
+	}
+    }
+
+
+    // ------ 1D real to complex ------
+
+    private synchronized float [] getRealTwiddles() {
+	if (realTw==null)
+	    realTw = twiddles( n, n/2+1 );
+	return realTw;
+    }
+
+    /** Transform the n real values starting at in[inOff] into the
+     *  n/2+1 (non-negative frequency) complex values at out[outOff] */
+    public void realForward( float [] in, int inOff, float [] out, int outOff ) {
+	final int nh = n/2;
+
+	// odd (or 1): through the complex transform
+	if (n%2!=0) {
+	    float [] tmp = new float[ 2*n ];
+	    for (int i=0; i<n; i++)
+		tmp[2*i] = in[inOff+i];
+	    transform( tmp, false );
+	    System.arraycopy( tmp, 0, out, outOff, 2*(nh+1) );
+	    return;
+	}
+
+	// even: pack into n/2 complex values, transform, then untangle
+	final float [] z = new float[ 2*nh ];
+	System.arraycopy( in, inOff, z, 0, n );
+	get( nh ).transform( z, false );
+
+	final float [] rt = getRealTwiddles();
+	for (int k=0; k<=nh; k++) {
+	    final int a = 2*(k%nh), b = 2*((nh-k)%nh);
+	    // even part: (Z[k]+conj(Z[nh-k]))/2, odd part: (Z[k]-conj(Z[nh-k]))/2i
+	    final float er = (z[a]+z[b])/2, ei = (z[a+1]-z[b+1])/2;
+	    final float or = (z[a+1]+z[b+1])/2, oi = -(z[a]-z[b])/2;
+	    final float wr = rt[2*k], wi = rt[2*k+1];
+	    out[outOff+2*k]   = er + (or*wr - oi*wi);
+	    out[outOff+2*k+1] = ei + (or*wi + oi*wr);
+	}
+    }
+
+
+    // ------ 2D / 3D ------
+
+    /** 2D transform of w x h complex values (interleaved, row by row), in place */
+    public static void transform2d( final float [] data, final int w, final int h,
+	final boolean inverse ) {
+	final FFT fx = get( w ), fy = get( h );
+
+	new SimpleMT.PFor(0, h) {
+	    @Override
+	    public void at(int y) {
+		fx.transform( data, 2*y*w, inverse );
+	    }
+	}.run();
+
+	columns( data, w, h, 1, fy, inverse );
+    }
+
+    /** transform the columns of 'planes' w x h complex planes */
+    static void columns( final float [] data, final int w, final int h, final int planes,
+	final FFT fy, final boolean inverse ) {
+
+	new SimpleMT.PFor(0, w*planes) {
+	    @Override
+	    public void at(int i) {
+		final int x = i%w, off = (i/w)*w*h;
+		final float [] col = new float[ 2*h ];
+		for (int y=0; y<h; y++) {
+		    col[2*y]   = data[2*(off+y*w+x)];
+		    col[2*y+1] = data[2*(off+y*w+x)+1];
+		}
+		fy.transform( col, inverse );
+		for (int y=0; y<h; y++) {
+		    data[2*(off+y*w+x)]   = col[2*y];
+		    data[2*(off+y*w+x)+1] = col[2*y+1];
+		}
+	    }
+	}.run();
+    }
+
+    /** 3D transform of w x h x d complex values (interleaved, plane by plane), in place */
+    public static void transform3d( final float [] data, final int w, final int h, final int d,
+	final boolean inverse ) {
+	final FFT fx = get( w ), fz = get( d );
+
+	new SimpleMT.PFor(0, h*d) {
+	    @Override
+	    public void at(int y) {
+		fx.transform( data, 2*y*w, inverse );
+	    }
+	}.run();
+
+	columns( data, w, h, d, get( h ), inverse );
+
+	// along z, 'w*h' apart
+	columns( data, w*h, d, 1, fz, inverse );
+    }
+
+    /** 2D transform of w x h real values, returns (w/2+1) x h complex values */
+    public static float [] realForward2d( final float [] in, final int w, final int h ) {
+	final int wh = w/2+1;
+	final float [] out = new float[ 2*wh*h ];
+	final FFT fx = get( w );
+
+	new SimpleMT.PFor(0, h) {
+	    @Override
+	    public void at(int y) {
+		fx.realForward( in, y*w, out, 2*y*wh );
+	    }
+	}.run();
+
+	columns( out, wh, h, 1, get( h ), false );
+	return out;
+    }
+
+    /** Power spectrum |F|^2 of w x h real values, as w x h image with
+     *  the zero frequency at (w/2, h/2) */
+    public static float [] powerSpectrum( float [] in, int w, int h ) {
+	final int wh = w/2+1;
+	final float [] f = realForward2d( in, w, h );
+	final float [] ret = new float[ w*h ];
+	for (int ky=0; ky<h; ky++) {
+	    final int yo = (ky + h/2)%h;
+	    for (int kx=0; kx<w; kx++) {
+		// negative frequencies from the symmetry F(-k) = conj(F(k))
+		final int i = (kx<wh)?(2*(ky*wh+kx)):(2*(((h-ky)%h)*wh+(w-kx)));
+		ret[ yo*w + (kx + w/2)%w ] = f[i]*f[i]+f[i+1]*f[i+1];
+	    }
+	}
+	return ret;
+    }
+
+}
@@ -0,0 +1,116 @@
+package de.bio_photonics.omxtools;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+
+/** Sums of consecutive frames of a stack, computed directly on the
+ *  byte[], short[] (both unsigned) or float[] pixel arrays.
+ *  Results can be float, or 16-bit (sum clipped to 65535, or mean). */
+public final class FrameSum {
+
+    /** output types */
+    public static final int OUT_FLOAT=0, OUT_SHORT_SUM=1, OUT_SHORT_MEAN=2;
+
+    /** names of the output types, for dialogs */
+    public static final String [] outputNames = {
+	"32-bit (float sum)", "16-bit (sum, clipped)", "16-bit (mean)" };
+
+    private FrameSum() {}
+
+    /** Sum up the 'm' frames starting at 'n' (0-based) of 'in' into a new
+     *  processor of type 'outType' (OUT_FLOAT, OUT_SHORT_SUM, OUT_SHORT_MEAN) */
+    public static ImageProcessor sum( ImageStack in, int n, int m, int outType ) {
+	final int w = in.getWidth(), h = in.getHeight();
+	Object [] frames = new Object[m];
+	for (int i=0; i<m; i++)
+	    frames[i] = in.getPixels( n+i+1 );
+	return sum( frames, w, h, outType );
+    }
+
+    /** Sum up the frames idx[off] to idx[off+m-1] (0-based) of 'in',
+     *  e.g. from an {@link AcquisitionOrder} table */
+    public static ImageProcessor sum( ImageStack in, int [] idx, int off, int m, int outType ) {
+	Object [] frames = new Object[m];
+	for (int i=0; i<m; i++)
+	    frames[i] = in.getPixels( idx[off+i]+1 );
+	return sum( frames, in.getWidth(), in.getHeight(), outType );
+    }
+
+    /** Sum up the pixel arrays 'frames' (all of the same type, w*h pixels) */
+    public static ImageProcessor sum( Object [] frames, int w, int h, int outType ) {
+	final int len = w*h;
+
+	if (outType == OUT_FLOAT) {
+	    float [] acc = new float[ len ];
+	    for ( Object f : frames )
+		addTo( acc, f );
+	    return new FloatProcessor( w, h, acc, null );
+	}
+
+	// 16-bit output, accumulate exactly (float input is rounded at the end)
+	short [] out = new short[ len ];
+	if (frames.length>0 && frames[0] instanceof float []) {
+	    float [] acc = new float[ len ];
+	    for ( Object f : frames )
+		addTo( acc, f );
+	    final float div = (outType==OUT_SHORT_MEAN)?(frames.length):(1);
+	    for (int i=0; i<len; i++)
+		out[i] = clip( Math.round( acc[i]/div ));
+	} else {
+	    int [] acc = new int[ len ];
+	    for ( Object f : frames )
+		addTo( acc, f );
+	    if (outType==OUT_SHORT_MEAN) {
+		final int div = frames.length, half = frames.length/2;
+		for (int i=0; i<len; i++)
+		    out[i] = (short)((acc[i]+half)/div);
+	    } else {
+		for (int i=0; i<len; i++)
+		    out[i] = clip( acc[i] );
+	    }
+	}
+	return new ShortProcessor( w, h, out, null );
+    }
+
+    static short clip( int v ) {
+	return (short)((v<0)?(0):((v>65535)?(65535):(v)));
+    }
+
+    /** add 'pixels' (byte[], short[] or float[]) to 'acc' */
+    static void addTo( float [] acc, Object pixels ) {
+	if (pixels instanceof short []) {
+	    final short [] p = (short [])pixels;
+	    for (int i=0; i<acc.length; i++)
+		acc[i] += (p[i]&0xffff);
+	} else if (pixels instanceof byte []) {
+	    final byte [] p = (byte [])pixels;
+	    for (int i=0; i<acc.length; i++)
+		acc[i] += (p[i]&0xff);
+	} else if (pixels instanceof float []) {
+	    final float [] p = (float [])pixels;
+	    for (int i=0; i<acc.length; i++)
+		acc[i] += p[i];
+	} else {
+	    throw new IllegalArgumentException("Unsupported pixel type");
+	}
+    }
+
+    /** add 'pixels' (byte[] or short[]) to 'acc' */
+    static void addTo( int [] acc, Object pixels ) {
+	if (pixels instanceof short []) {
+	    final short [] p = (short [])pixels;
+	    for (int i=0; i<acc.length; i++)
+		acc[i] += (p[i]&0xffff);
+	} else if (pixels instanceof byte []) {
+	    final byte [] p = (byte [])pixels;
+	    for (int i=0; i<acc.length; i++)
+		acc[i] += (p[i]&0xff);
+	} else {
+	    throw new IllegalArgumentException("Unsupported pixel type");
+	}
+    }
+
+}
@@ -0,0 +1,361 @@
+package de.bio_photonics.omxtools;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DecimalFormatSymbols;
+
+
+/** Parsing and formatting of int and double arrays, as stored in
+ *  'int' and 'decimal' entries of {@link Conf}. Works on char[] ranges,
+ *  without boxing or per-value objects, and produces exactly the text of
+ *  <code>i+" "</code> and <code>String.format("%8.5e ",d)</code> (and parses
+ *  what java.util.Scanner would). Cases that would need more effort (rounding
+ *  ties, extreme exponents, unusual locales) are passed on to the JDK. */
+public final class NumberText {
+
+    private NumberText() {}
+
+    // exact for 0..22, correctly rounded above
+    private static final double [] POW10 = new double[309];
+    static {
+	for (int i=0; i<POW10.length; i++)
+	    POW10[i] = Double.parseDouble("1e"+i);
+    }
+
+    /** Chars needed for one formatted int (plus its separator) */
+    static final int MAX_INT_CHARS = 12;
+    /** Chars needed for one formatted double (plus its separator) */
+    static final int MAX_DBL_CHARS = 16;
+
+
+    // ------ formatting ------
+
+    /** Append 'v' followed by a space (as <code>v+" "</code>) to 'buf' at 'pos'.
+     *  Returns the new position. */
+    static int formatInt( int v, char [] buf, int pos ) {
+	if (v<0) {
+	    buf[pos++]='-';
+	    // MIN_VALUE can not be negated, its magnitude fits a long
+	    pos = formatMagnitude( -(long)v, buf, pos );
+	} else {
+	    pos = formatMagnitude( v, buf, pos );
+	}
+	buf[pos++]=' ';
+	return pos;
+    }
+
+    private static int formatMagnitude( long v, char [] buf, int pos ) {
+	int n=1;
+	for (long t=v; t>=10; t/=10) n++;
+	for (int i=pos+n-1; i>=pos; i--) {
+	    buf[i] = (char)('0'+(v%10));
+	    v/=10;
+	}
+	return pos+n;
+    }
+
+    /** Returns the decimal separator String.format currently uses,
+     *  or 0 if the locale does not use ASCII digits. */
+    static char formatSeparator() {
+	String s = String.format("%.1e", 0.0);
+	return (s.charAt(0)=='0')?(s.charAt(1)):(0);
+    }
+
+    /** Append 'v' as <code>String.format("%8.5e ",v)</code> to 'buf' at 'pos',
+     *  with 'sep' as decimal separator (see 'formatSeparator'). Returns the
+     *  new position. 'buf' has to have MAX_DBL_CHARS space. */
+    static int formatSci( double v, char sep, char [] buf, int pos ) {
+	final double av = Math.abs(v);
+
+	if (sep==0 || Double.isNaN(v) || Double.isInfinite(v) ||
+	    (av!=0 && (av<1e-280 || av>1e280)))
+	    return formatSlow( v, buf, pos );
+
+	final boolean neg = (Double.doubleToRawLongBits(v)<0);
+
+	if (av==0) {
+	    if (neg) buf[pos++]='-';
+	    buf[pos++]='0'; buf[pos++]=sep;
+	    for (int i=0;i<5;i++) buf[pos++]='0';
+	    buf[pos++]='e'; buf[pos++]='+'; buf[pos++]='0'; buf[pos++]='0';
+	    buf[pos++]=' ';
+	    return pos;
+	}
+
+	// scale to 6 digits before the point: y in [1e5,1e6)
+	int e = (int)Math.floor( Math.log10( av ));
+	double y = scale( av, 5-e );
+	if (y>=1e6) {
+	    e++;
+	    y = scale( av, 5-e );
+	} else if (y<1e5) {
+	    e--;
+	    y = scale( av, 5-e );
+	}
+
+	// The JDK rounds its shortest decimal representation half-up.
+	// That only differs from rounding 'y' if we are close to a tie,
+	// so let the JDK handle those (very rare) cases.
+	final double fl = Math.floor(y);
+	final double frac = y-fl;
+	if (Math.abs(frac-0.5) < 1e-7)
+	    return formatSlow( v, buf, pos );
+
+	long m = (long)fl + ((frac>0.5)?(1):(0));
+	if (m>=1000000) {
+	    m/=10;
+	    e++;
+	}
+
+	// mantissa
+	if (neg) buf[pos++]='-';
+	for (int i=pos+6; i>=pos+2; i--) {
+	    buf[i] = (char)('0'+(m%10));
+	    m/=10;
+	}
+	buf[pos]   = (char)('0'+m);
+	buf[pos+1] = sep;
+	pos+=7;
+
+	// exponent, at least two digits
+	buf[pos++]='e';
+	buf[pos++]=(e<0)?('-'):('+');
+	e = Math.abs(e);
+	if (e<10)
+	    buf[pos++]='0';
+	pos = formatMagnitude( e, buf, pos );
+	buf[pos++]=' ';
+	return pos;
+    }
+
+    /** returns av * 10^k */
+    private static double scale( double av, int k ) {
+	return (k>=0)?(av*POW10[k]):(av/POW10[-k]);
+    }
+
+    private static int formatSlow( double v, char [] buf, int pos ) {
+	String s = String.format("%8.5e ", v);
+	s.getChars( 0, s.length(), buf, pos );
+	return pos+s.length();
+    }
+
+    /** Format all values as <code>i+" "</code>, after a leading space */
+    static String formatInts( int [] v ) {
+	char [] buf = new char[ 1+ v.length*MAX_INT_CHARS ];
+	int pos=0;
+	buf[pos++]=' ';
+	for (int i : v)
+	    pos = formatInt( i, buf, pos );
+	return new String( buf, 0, pos );
+    }
+
+    /** Format all values as <code>String.format("%8.5e ",d)</code>, after a leading space */
+    static String formatDoubles( double [] v ) {
+	final char sep = formatSeparator();
+	char [] buf = new char[ 1+ v.length*MAX_DBL_CHARS ];
+	int pos=0;
+	buf[pos++]=' ';
+	for (double d : v)
+	    pos = formatSci( d, sep, buf, pos );
+	return new String( buf, 0, pos );
+    }
+
+    /** Write the same text as 'formatInts' to 'out', through a small buffer */
+    static void writeInts( int [] v, Writer out ) throws IOException {
+	char [] buf = new char[ 4096 ];
+	int pos=0;
+	buf[pos++]=' ';
+	for (int i : v) {
+	    if (pos > buf.length-MAX_INT_CHARS) {
+		out.write( buf, 0, pos );
+		pos=0;
+	    }
+	    pos = formatInt( i, buf, pos );
+	}
+	out.write( buf, 0, pos );
+    }
+
+    /** Write the same text as 'formatDoubles' to 'out', through a small buffer */
+    static void writeDoubles( double [] v, Writer out ) throws IOException {
+	final char sep = formatSeparator();
+	char [] buf = new char[ 4096 ];
+	int pos=0;
+	buf[pos++]=' ';
+	for (double d : v) {
+	    if (pos > buf.length-MAX_DBL_CHARS) {
+		out.write( buf, 0, pos );
+		pos=0;
+	    }
+	    pos = formatSci( d, sep, buf, pos );
+	}
+	out.write( buf, 0, pos );
+    }
+
+
+    // ------ parsing ------
+
+    /** Parse whitespace-separated ints in c[off] to c[off+len], stopping at
+     *  the first token that is not an int (like Scanner.hasNextInt).
+     *  Returns null if a token contains chars the fast path does not
+     *  handle (grouping, localized digits, ...), the caller should then
+     *  fall back to java.util.Scanner. */
+    static int [] parseInts( char [] c, int off, int len ) {
+	int [] ret = new int[16];
+	int n=0;
+	int p=off;
+	final int end=off+len;
+
+	while (true) {
+	    while (p<end && Character.isWhitespace(c[p])) p++;
+	    if (p>=end)
+		break;
+	    int q=p;
+	    while (q<end && !Character.isWhitespace(c[q])) q++;
+
+	    // token in [p,q)
+	    for (int i=p; i<q; i++)
+		if (!(c[i]>='0' && c[i]<='9') && c[i]!='-' && c[i]!='+')
+		    return null;
+
+	    boolean neg=false;
+	    int i=p;
+	    if (c[i]=='-' || c[i]=='+') {
+		neg = (c[i]=='-');
+		i++;
+	    }
+	    if (i==q)
+		break;	    // no digits: not an int
+	    long v=0;
+	    boolean ok=true;
+	    for (; i<q; i++) {
+		if (c[i]<'0' || c[i]>'9' || v>Integer.MAX_VALUE+1L) {
+		    ok=false;
+		    break;
+		}
+		v = v*10 + (c[i]-'0');
+	    }
+	    if (neg) v=-v;
+	    if (!ok || v>Integer.MAX_VALUE || v<Integer.MIN_VALUE)
+		break;	    // not an int, Scanner stops here
+
+	    if (n==ret.length)
+		ret = java.util.Arrays.copyOf( ret, 2*n );
+	    ret[n++] = (int)v;
+	    p=q;
+	}
+	return java.util.Arrays.copyOf( ret, n );
+    }
+
+    /** Returns the decimal separator java.util.Scanner currently uses */
+    static char parseSeparator() {
+	return new DecimalFormatSymbols().getDecimalSeparator();
+    }
+
+    /** Parse whitespace-separated doubles in c[off] to c[off+len], with decimal
+     *  separator 'sep' (see 'parseSeparator'), stopping at the first token that
+     *  is not a number (like Scanner.hasNextDouble). Returns null if a token
+     *  contains chars the fast path does not handle ("NaN", grouping, ...),
+     *  the caller should then fall back to java.util.Scanner. */
+    static double [] parseDoubles( char [] c, int off, int len, char sep ) {
+	double [] ret = new double[16];
+	int n=0;
+	int p=off;
+	final int end=off+len;
+
+	while (true) {
+	    while (p<end && Character.isWhitespace(c[p])) p++;
+	    if (p>=end)
+		break;
+	    int q=p;
+	    while (q<end && !Character.isWhitespace(c[q])) q++;
+
+	    for (int i=p; i<q; i++) {
+		final char ch = c[i];
+		if (!(ch>='0' && ch<='9') && ch!='-' && ch!='+' && ch!='e' && ch!='E' && ch!=sep)
+		    return null;
+	    }
+
+	    // [+-] digits* [sep digits*] [(e|E) [+-] digits+]
+	    int i=p;
+	    boolean neg=false;
+	    if (c[i]=='-' || c[i]=='+') {
+		neg = (c[i]=='-');
+		i++;
+	    }
+	    long mant=0;
+	    int nrDigits=0, sigDigits=0, exp10=0;
+	    boolean overflow=false;
+	    for (; i<q && c[i]>='0' && c[i]<='9'; i++) {
+		nrDigits++;
+		if (mant==0 && c[i]=='0') continue;
+		if (sigDigits<18) {
+		    mant = mant*10 + (c[i]-'0');
+		    sigDigits++;
+		} else {
+		    overflow=true;
+		}
+	    }
+	    if (i<q && c[i]==sep) {
+		i++;
+		for (; i<q && c[i]>='0' && c[i]<='9'; i++) {
+		    nrDigits++;
+		    if (mant==0 && c[i]=='0') {
+			exp10--;
+			continue;
+		    }
+		    if (sigDigits<18) {
+			mant = mant*10 + (c[i]-'0');
+			sigDigits++;
+			exp10--;
+		    } else {
+			overflow=true;
+		    }
+		}
+	    }
+	    if (nrDigits==0)
+		break;	    // not a number
+	    if (i<q && (c[i]=='e' || c[i]=='E')) {
+		i++;
+		boolean eneg=false;
+		if (i<q && (c[i]=='-' || c[i]=='+')) {
+		    eneg = (c[i]=='-');
+		    i++;
+		}
+		if (i==q)
+		    break;
+		int ev=0;
+		for (; i<q && c[i]>='0' && c[i]<='9'; i++)
+		    ev = (ev<100000)?(ev*10 + (c[i]-'0')):(ev);
+		exp10 += (eneg)?(-ev):(ev);
+	    }
+	    if (i!=q)
+		break;	    // trailing garbage: not a number
+
+	    double v;
+	    if (mant==0) {
+		v = 0;
+	    } else if (!overflow && mant < (1L<<53) && exp10>=-22 && exp10<=22) {
+		// both exact, so one correctly rounded operation
+		v = (exp10>=0)?(mant*POW10[exp10]):(mant/POW10[-exp10]);
+	    } else {
+		v = slowParse( c, p, q, sep );
+		neg = false;	// sign already included
+	    }
+	    if (neg) v=-v;
+
+	    if (n==ret.length)
+		ret = java.util.Arrays.copyOf( ret, 2*n );
+	    ret[n++] = v;
+	    p=q;
+	}
+	return java.util.Arrays.copyOf( ret, n );
+    }
+
+    private static double slowParse( char [] c, int p, int q, char sep ) {
+	String s = new String( c, p, q-p );
+	if (sep!='.')
+	    s = s.replace( sep, '.' );
+	return Double.parseDouble( s );
+    }
+
+}
@@ -3,12 +3,13 @@ package de.bio_photonics.omxtools;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.ImageProcessor;
-import ij.process.FloatProcessor;
-import ij.process.ShortProcessor;
 
 import ij.plugin.PlugIn;
 import ij.IJ;
 import ij.gui.GenericDialog;
+import ij.io.FileSaver;
+
+import java.util.concurrent.Semaphore;
 
 /** Small utility class to split OMX stacks into
 2D-planes for analysis */
@@ -17,12 +18,34 @@ public class OMX_Splitter implements PlugIn {
 	@Override
 	public void run(String arg) {
 	
-		// get the active image plus instance
+		// read planes on demand from a DV file ...
+		if ("file".equals(arg)) {
+		    DVStackReader dv = null;
+		    try {
+			dv = DVStackReader.openDialog("Open OMX stack (.dv)");
+			if (dv == null) return;
+			run( new ImagePlus( dv.getName(), dv.getStack() ));
+		    } catch (java.io.IOException e) {
+			IJ.showMessage("Error reading DV file: "+e);
+		    } finally {
+			try {
+			    if (dv!=null) dv.close();
+			} catch (java.io.IOException e) {}
+		    }
+		    return;
+		}
+
+		// ... or get the active image plus instance
 		ImagePlus aip = ij.WindowManager.getCurrentImage();
 		if (aip == null) {
 			IJ.showMessage("No active image stack selected");
 			return;
 		}
+		run( aip );
+	}
+
+	/** Run the splitter on an image (which might be a virtual stack) */
+	void run(ImagePlus aip) {
 
 		// currently: check if these are 3x 5 phases
 		int numImages = aip.getStack().getSize();
@@ -41,13 +64,18 @@ public class OMX_Splitter implements PlugIn {
 
 		// display dialog
 		GenericDialog gd = new GenericDialog("OMX stack splitter");
-		String [] whatToDo = { "2D slice as stack", "sep. angles, phases summed" };
+		String [] whatToDo = { "2D slice as stack", "sep. angles, phases summed",
+		    "all 2D slices (hyperstack or files)", "time-lapse / channels, streamed to files",
+		    "statistics (widefield, angle sums, modulation, frame means)",
+		    "power spectra of a 2D slice" };
 		gd.addChoice("What to do", whatToDo, whatToDo[1]);
+		gd.addChoice("Phase sum output", FrameSum.outputNames, FrameSum.outputNames[0]);
 		gd.showDialog();
       		if (gd.wasCanceled()) return;
 
 		// find out what to do ...
 		int sel = gd.getNextChoiceIndex();
+		final int outType = gd.getNextChoiceIndex();
 
 		// ... seperate out a 2D-slice
 		if (sel == 0) {
@@ -56,11 +84,15 @@ public class OMX_Splitter implements PlugIn {
 		    gd2.addNumericField("Slice [1-" +(numImages/15)+"]",1,0);
 		    gd2.addCheckbox("zero padding", false);
 		    gd2.addNumericField("padding factor",2,0);
+		    gd2.addNumericField("fade edges [px, 0: off]",0,0);
+		    gd2.addCheckbox("32-bit output (when padding or fading)", false);
 		    gd2.showDialog();
 		    if (gd2.wasCanceled()) return;
 		    final int idx = (int)gd2.getNextNumber();
 		    final boolean zeroPad = gd2.getNextBoolean();
 		    final int padf = (int)gd2.getNextNumber();
+		    final int fadePx = (int)gd2.getNextNumber();
+		    final boolean floatOut = gd2.getNextBoolean();
 
 		    if ((idx<=0)||(idx > (numImages/15))) {
 			IJ.showMessage("Index out of range");
@@ -69,18 +101,177 @@ public class OMX_Splitter implements PlugIn {
 
 		    
 		    // do the work
-		    ImageStack res = get2Dstack( aip.getStack() , idx-1 , zeroPad,padf);
+		    ImageStack res = get2Dstack( aip.getStack() , idx-1 , zeroPad,padf, fadePx, floatOut);
+		    res = DVStackReader.detach( res, aip.getStack() );
 		    ImagePlus result = new ImagePlus(  "OMX plane "+idx, res);
 		    result.show();
 
 
 		}
 
+		// ... seperate out all 2D-slices
+		if (sel == 2) {
+		    GenericDialog gd2 = new GenericDialog("All slices");
+		    gd2.addCheckbox("zero padding", false);
+		    gd2.addNumericField("padding factor",2,0);
+		    gd2.addNumericField("fade edges [px, 0: off]",0,0);
+		    gd2.addCheckbox("32-bit output (when padding or fading)", false);
+		    gd2.addNumericField("memory in flight [MB] (when saving files)",
+			Math.max(64, Runtime.getRuntime().maxMemory()/(4*1024*1024)),0);
+		    gd2.addCheckbox("save as files (instead of hyperstack)", false);
+		    gd2.showDialog();
+		    if (gd2.wasCanceled()) return;
+		    final boolean zeroPad = gd2.getNextBoolean();
+		    final int padf = (int)gd2.getNextNumber();
+		    final int fadePx = (int)gd2.getNextNumber();
+		    final boolean floatOut = gd2.getNextBoolean();
+		    final long budgetMB = (long)gd2.getNextNumber();
+		    final boolean toFiles = gd2.getNextBoolean();
+
+		    try {
+			if (toFiles) {
+			    String dir = new ij.io.DirectoryChooser("Save slices to").getDirectory();
+			    if (dir == null) return;
+			    saveAllSlices( aip.getStack(), dir, "OMX_plane_",
+				zeroPad, padf, fadePx, floatOut, budgetMB );
+			} else {
+			    getAllSlices( aip.getStack(), "OMX planes",
+				zeroPad, padf, fadePx, floatOut, budgetMB ).show();
+			}
+		    } catch (java.io.IOException e) {
+			IJ.showMessage("Error saving slices: "+e);
+		    }
+		}
+
+		// ... stream volumes of a time-lapse through the splitter
+		if (sel == 3) {
+		    GenericDialog gd2 = new GenericDialog("Time-lapse / channels");
+		    gd2.addNumericField("time points",1,0);
+		    gd2.addNumericField("channels",1,0);
+		    String [] nesting = { "time, channel, (angle, z, phase)",
+			"channel, time, (angle, z, phase)" };
+		    gd2.addChoice("Order (outermost first)", nesting, nesting[0]);
+		    gd2.addCheckbox("phase sums per angle", true);
+		    gd2.addCheckbox("2D slices", false);
+		    gd2.addCheckbox("zero padding", false);
+		    gd2.addNumericField("padding factor",2,0);
+		    gd2.addNumericField("fade edges [px, 0: off]",0,0);
+		    gd2.addCheckbox("32-bit output (when padding or fading)", false);
+		    gd2.showDialog();
+		    if (gd2.wasCanceled()) return;
+		    final int nt = (int)gd2.getNextNumber();
+		    final int nc = (int)gd2.getNextNumber();
+		    final boolean channelOuter = (gd2.getNextChoiceIndex()==1);
+		    final boolean sums = gd2.getNextBoolean();
+		    final boolean slices = gd2.getNextBoolean();
+		    final boolean zeroPad = gd2.getNextBoolean();
+		    final int padf = (int)gd2.getNextNumber();
+		    final int fadePx = (int)gd2.getNextNumber();
+		    final boolean floatOut = gd2.getNextBoolean();
+
+		    if (nt<1 || nc<1 || numImages % (15*nt*nc) != 0) {
+			IJ.showMessage("Stack should be n*15*time points*channels images");
+			return;
+		    }
+		    AcquisitionOrder order = AcquisitionOrder.omx( numImages/(15*nt*nc) );
+		    order = (channelOuter)?
+			(order.withOuter( AcquisitionOrder.TIME, nt ).withOuter( AcquisitionOrder.CHANNEL, nc )):
+			(order.withOuter( AcquisitionOrder.CHANNEL, nc ).withOuter( AcquisitionOrder.TIME, nt ));
+
+		    final String dir = new ij.io.DirectoryChooser("Save results to").getDirectory();
+		    if (dir == null) return;
+
+		    try {
+			new SIMPipeline( aip.getStack(), order )
+			    .setPhaseSums( sums, outType )
+			    .setSlices( slices, zeroPad, padf, fadePx, floatOut )
+			    .run( new SIMPipeline.Sink() {
+				@Override
+				public void put( SIMPipeline.Result r ) throws java.io.IOException {
+				    final String base = String.format("OMX_t%03d_c%d", r.time+1, r.channel+1);
+				    if (r.angleSums != null)
+					for (int ang=0; ang<r.angleSums.length; ang++)
+					    saveStack( r.angleSums[ang], dir, base+"_angle"+ang );
+				    if (r.slices != null)
+					for (int z=0; z<r.slices.length; z++)
+					    saveStack( r.slices[z], dir, base+String.format("_z%03d", z+1));
+				    IJ.showStatus("saved "+base);
+				}
+			    });
+		    } catch (java.io.IOException e) {
+			IJ.showMessage("Error saving results: "+e);
+		    }
+		}
+
+		// ... statistics, in one pass over the stack
+		if (sel == 4) {
+		    GenericDialog gd2 = new GenericDialog("Statistics");
+		    gd2.addCheckbox("widefield (sum of all frames)", true);
+		    gd2.addCheckbox("phase sums per angle", false);
+		    gd2.addCheckbox("modulation per angle (max-min)", true);
+		    gd2.addCheckbox("mean of each frame", false);
+		    gd2.showDialog();
+		    if (gd2.wasCanceled()) return;
+		    int outputs = 0;
+		    if (gd2.getNextBoolean()) outputs |= RawStats.WIDEFIELD;
+		    if (gd2.getNextBoolean()) outputs |= RawStats.ANGLE_SUMS;
+		    if (gd2.getNextBoolean()) outputs |= RawStats.MODULATION;
+		    if (gd2.getNextBoolean()) outputs |= RawStats.FRAME_MEANS;
+
+		    RawStats st = RawStats.compute( aip.getStack(),
+			AcquisitionOrder.omx( numImages/15 ), outputs );
+		    if (st.widefield != null)
+			new ImagePlus( "OMX widefield", st.widefield ).show();
+		    for (int ang=0; st.angleSums!=null && ang<st.angleSums.length; ang++)
+			new ImagePlus( "OMX angle "+ang, st.angleSums[ang] ).show();
+		    for (int ang=0; st.modulation!=null && ang<st.modulation.length; ang++)
+			new ImagePlus( "OMX modulation, angle "+ang, st.modulation[ang] ).show();
+		    if (st.frameMeans != null) {
+			ij.measure.ResultsTable rt = new ij.measure.ResultsTable();
+			for (int i=0; i<st.frameMeans.length; i++) {
+			    rt.incrementCounter();
+			    rt.addValue( "frame", i+1 );
+			    rt.addValue( "angle", i/(numImages/3) );
+			    rt.addValue( "z", (i%(numImages/3))/5+1 );
+			    rt.addValue( "phase", i%5 );
+			    rt.addValue( "mean", st.frameMeans[i] );
+			}
+			rt.show( "OMX frame means" );
+		    }
+		}
+
+		// ... power spectra of the frames of a 2D-slice
+		if (sel == 5) {
+		    GenericDialog gd2 = new GenericDialog("Power spectra");
+		    gd2.addNumericField("Slice [1-" +(numImages/15)+"]",1,0);
+		    gd2.addCheckbox("zero padding", false);
+		    gd2.addNumericField("padding factor",2,0);
+		    gd2.addNumericField("fade edges [px, 0: off]",0,0);
+		    gd2.addCheckbox("logarithmic", true);
+		    gd2.showDialog();
+		    if (gd2.wasCanceled()) return;
+		    final int idx = (int)gd2.getNextNumber();
+		    final boolean zeroPad = gd2.getNextBoolean();
+		    final int padf = (int)gd2.getNextNumber();
+		    final int fadePx = (int)gd2.getNextNumber();
+		    final boolean log = gd2.getNextBoolean();
+
+		    if ((idx<=0)||(idx > (numImages/15))) {
+			IJ.showMessage("Index out of range");
+			return;
+		    }
+
+		    // fading is done while copying the slice
+		    ImageStack frames = get2Dstack( aip.getStack(), idx-1, zeroPad, padf, fadePx, true );
+		    new ImagePlus( "OMX power spectra, plane "+idx,
+			powerSpectra( frames, 0, log )).show();
+		}
+
 		// ... seperate out the angles
 		if (sel == 1) {
 		    
 		    // do the work
-		    ImageStack [] res = seperateAngles( aip.getStack() );
+		    ImageStack [] res = seperateAngles( aip.getStack(), outType );
 		    for (int ang=0;ang<3;ang++) {
 			ImagePlus result = new ImagePlus(  "OMX angle "+ang, res[ang]);
 			result.show();
@@ -91,58 +282,238 @@ public class OMX_Splitter implements PlugIn {
 
 	}
 
-	/** Copies a 2D-slice out of a stack */
+	/** Returns a 2D-slice of a stack. Without padding, this is a
+	 *  view sharing the pixels of the input (see ReorderedStack),
+	 *  with padding, the slices are copied. */
 	public ImageStack get2Dstack( ImageStack in3Dstack , int slice , boolean zeroPad, final int f ) {
+		return get2Dstack( in3Dstack, slice, zeroPad, f, 0, false );
+	}
+
+	/** Returns a 2D-slice of a stack, zero-padded by factor 'f' (if 'zeroPad'
+	 *  is set) with edges faded over 'fadePx' pixels (0: no fading).
+	 *  Fading also works without padding. With 'floatOut', padded or faded
+	 *  slices are 32-bit, so faded values are not rounded to 16 bit.
+	 *  Without padding and fading, this is a view (see ReorderedStack) and
+	 *  'floatOut' is ignored. Frames are padded in parallel. */
+	public ImageStack get2Dstack( final ImageStack in3Dstack , final int slice , boolean zeroPad,
+	    int f, final int fadePx, final boolean floatOut ) {
+
+		// no copy needed
+		if (!zeroPad && fadePx<=0)
+		    return ReorderedStack.omxSlice( in3Dstack, slice );
+		if (!zeroPad)
+		    f = 1;
 
-		// create a new stack
 		final int w= in3Dstack.getWidth();
 		final int h= in3Dstack.getHeight();
-		ImageStack newStack = new ImageStack( (zeroPad)?(f*w):(w), (zeroPad)?(f*h):(h));
-		final int numImages = in3Dstack.getSize();
-
-
-		// collect the images
-		for (int angle=0; angle<3; angle++)
-		for (int pha=0; pha<5; pha+=1) {
-			final int pos = (angle*numImages/3) + (slice*5) + pha;
-			if (!zeroPad)
-			    newStack.addSlice( in3Dstack.getProcessor(pos+1).duplicate());
-			else { 
-			    ShortProcessor sp = new ShortProcessor(w*f,h*f);
-			    ImageProcessor in = in3Dstack.getProcessor(pos+1);
-			    // copy the data
-			    for (int y=0;y<h;y++)
-			    for (int x=0;x<w;x++)
-				sp.setf(x+(f-1)*(w/2),y+(f-1)*(h/2),in.getf(x,y));
-			    // fade the edges
-			    
-
-
-			    newStack.addSlice( sp );
-			}
+		final int [] idx = AcquisitionOrder.omx( in3Dstack.getSize()/15 ).select(
+		    AcquisitionOrder.Z, slice, AcquisitionOrder.ANGLE, AcquisitionOrder.PHASE );
+		final ImageProcessor [] frames = new ImageProcessor[ idx.length ];
+		final int pf = f;
+
+		// pad (and fade) the images
+		new SimpleMT.PFor(0, idx.length) {
+		    @Override
+		    public void at(int i) {
+			frames[i] = EdgeTaper.pad( in3Dstack.getPixels(idx[i]+1), w, h, pf, fadePx, floatOut );
+		    }
+		}.run();
 
-		}
+		// create a new stack
+		ImageStack newStack = new ImageStack( pf*w, pf*h );
+		for ( ImageProcessor ip : frames )
+		    newStack.addSlice( ip );
 
 		// return result	
 		return newStack;	
 	}
 	
+	/** Receives the 2D-slices produced by 'splitAll' */
+	public interface SliceSink {
+	    /** Called (possibly concurrently) with slice 'slice' (0-based) */
+	    void put( int slice, ImageStack stack ) throws java.io.IOException;
+	}
+
+	/** Produce all 2D-slices of a stack (as 'get2Dstack' does), in parallel,
+	 *  and pass them to 'sink'. At most 'budgetMB' megabytes of padded
+	 *  slices are in flight (computed, but not yet returned from 'sink'),
+	 *  at least one slice is always processed. */
+	public void splitAll( final ImageStack in3Dstack, final boolean zeroPad,
+	    final int f, final int fadePx, final boolean floatOut, long budgetMB,
+	    final SliceSink sink ) throws java.io.IOException {
+
+		final int zDepth = in3Dstack.getSize()/15;
+
+		// memory needed per slice, in MB (views need nothing)
+		final int pf = (zeroPad)?(f):(1);
+		final long bytes = (!zeroPad && fadePx<=0)?(0):( 15L * pf*pf
+		    * in3Dstack.getWidth() * in3Dstack.getHeight() * ((floatOut)?(4):(2)));
+		final int budget = (int)Math.max( 1, Math.min( budgetMB, Integer.MAX_VALUE ));
+		final int need = (int)Math.min( budget, (bytes+(1<<20)-1)>>20 );
+		final Semaphore inFlight = new Semaphore( budget );
+
+		try {
+		    new SimpleMT.PFor(0, zDepth) {
+			@Override
+			public void at(int z) {
+			    inFlight.acquireUninterruptibly( need );
+			    try {
+				sink.put( z, get2Dstack( in3Dstack, z, zeroPad, f, fadePx, floatOut ));
+			    } catch (java.io.IOException e) {
+				throw new RuntimeException( e );
+			    } finally {
+				inFlight.release( need );
+			    }
+			}
+		    }.run();
+		} catch (RuntimeException e) {
+		    if (e.getCause() instanceof java.io.IOException)
+			throw (java.io.IOException)e.getCause();
+		    throw e;
+		}
+	}
+
+	/** Returns all 2D-slices as hyperstack, with the 15 SIM frames
+	 *  (angle, phase) as channels and the slices along z. Without padding
+	 *  and fading, the hyperstack is a view sharing the pixels of the input
+	 *  (see ReorderedStack), so editing it does not change the input.
+	 *  All slices are kept, so 'budgetMB' only bounds how many slices are
+	 *  computed at once, not the memory of the result. */
+	public ImagePlus getAllSlices( ImageStack in3Dstack, String title, boolean zeroPad,
+	    int f, int fadePx, boolean floatOut, long budgetMB ) {
+
+		final int zDepth = in3Dstack.getSize()/15;
+
+		// no copy needed: one view, in (z, angle, phase) order
+		if (!zeroPad && fadePx<=0) {
+		    ReorderedStack view = new ReorderedStack( in3Dstack,
+			AcquisitionOrder.omx( zDepth ).table(
+			    AcquisitionOrder.Z, AcquisitionOrder.ANGLE, AcquisitionOrder.PHASE ));
+		    for (int i=1; i<=view.getSize(); i++)
+			view.setSliceLabel( label( i ), i );
+		    return hyperstack( title, DVStackReader.detach( view, in3Dstack ), zDepth );
+		}
+
+		final ImageStack [] res = new ImageStack[ zDepth ];
+		try {
+		    splitAll( in3Dstack, zeroPad, f, fadePx, floatOut, budgetMB, new SliceSink() {
+			@Override
+			public void put( int slice, ImageStack stack ) {
+			    res[slice] = stack;
+			}
+		    });
+		} catch (java.io.IOException e) {
+		    throw new RuntimeException( e );	// not thrown by our sink
+		}
+
+		// the slices are copies, so their pixels can be used directly
+		final int fw = (zeroPad)?(f):(1);
+		ImageStack all = new ImageStack( fw*in3Dstack.getWidth(), fw*in3Dstack.getHeight() );
+		for (int z=0; z<zDepth; z++)
+		    for (int i=1; i<=res[z].getSize(); i++)
+			all.addSlice( label( z*15+i ), res[z].getPixels(i) );
+
+		return hyperstack( title, all, zDepth );
+	}
+
+	/** label of slice 'n' (1-based) of the all-slices hyperstack */
+	static String label( int n ) {
+		final int z = (n-1)/15, i = (n-1)%15;
+		return "z="+(z+1)+" a="+(i/5)+" p="+(i%5);
+	}
+
+	/** 15 channels (angle, phase) times 'zDepth' slices */
+	static ImagePlus hyperstack( String title, ImageStack all, int zDepth ) {
+		ImagePlus ret = new ImagePlus( title, all );
+		ret.setDimensions( 15, zDepth, 1 );
+		ret.setOpenAsHyperStack( true );
+		return ret;
+	}
+
+	/** Saves all 2D-slices as TIFF stacks 'prefix'+nnn+".tif" in 'dir',
+	 *  while they are produced. */
+	public void saveAllSlices( ImageStack in3Dstack, final String dir, final String prefix,
+	    boolean zeroPad, int f, int fadePx, boolean floatOut, long budgetMB )
+	    throws java.io.IOException {
+
+		splitAll( in3Dstack, zeroPad, f, fadePx, floatOut, budgetMB, new SliceSink() {
+		    @Override
+		    public void put( int slice, ImageStack stack ) throws java.io.IOException {
+			saveStack( stack, dir, prefix+String.format("%03d", slice+1));
+		    }
+		});
+	}
+
+	/** save 'stack' as TIFF 'name'.tif in 'dir' */
+	static void saveStack( ImageStack stack, String dir, String name ) throws java.io.IOException {
+		final String path = new java.io.File( dir, name+".tif" ).getPath();
+		final ImagePlus imp = new ImagePlus( name, stack );
+		final boolean ok = (stack.getSize()>1)?(new FileSaver( imp ).saveAsTiffStack( path )):
+		    (new FileSaver( imp ).saveAsTiff( path ));
+		if (!ok)
+		    throw new java.io.IOException("Could not save "+path);
+	}
+
+	/** Returns the power spectra (zero frequency centered) of all frames
+	 *  of 'frames', computed in parallel. Edges are faded over 'fadePx'
+	 *  pixels first (0: no fading), 'log' shows log(1+|F|^2). */
+	public ImageStack powerSpectra( final ImageStack frames, final int fadePx, final boolean log ) {
+	    final int w = frames.getWidth(), h = frames.getHeight();
+	    final float [][] res = new float[ frames.getSize() ][];
+
+	    new SimpleMT.PFor(0, frames.getSize()) {
+		@Override
+		public void at(int i) {
+		    ImageProcessor ip = ReorderedStack.readProcessor( frames, i+1 ).convertToFloat();
+		    if (ip.getPixels() == frames.getPixels(i+1))
+			ip = ip.duplicate();
+		    if (fadePx>0)
+			fadeEdges( ip, fadePx, w, h );
+		    float [] ps = FFT.powerSpectrum( (float [])ip.getPixels(), w, h );
+		    if (log)
+			for (int j=0; j<ps.length; j++)
+			    ps[j] = (float)Math.log1p( ps[j] );
+		    res[i] = ps;
+		}
+	    }.run();
+
+	    ImageStack ret = new ImageStack( w, h );
+	    for (int i=0; i<res.length; i++)
+		ret.addSlice( "frame "+(i+1), new ij.process.FloatProcessor( w, h, res[i], null ));
+	    return ret;
+	}
+
 	/** Returns 3 stacks, one per angle, phases summed up */
 	public ImageStack [] seperateAngles( ImageStack inStack ) {
+	    return seperateAngles( inStack, FrameSum.OUT_FLOAT );
+	}
 
-	    final int zDepth = inStack.getSize()/15;
+	/** Returns 3 stacks, one per angle, phases summed up. 
+	 *  The output type is one of FrameSum.OUT_FLOAT, OUT_SHORT_SUM,
+	 *  OUT_SHORT_MEAN. Sums are computed in parallel over z and angle. */
+	public ImageStack [] seperateAngles( final ImageStack inStack, final int outType ) {
 
-	    // allocate stacks
-	    ImageStack [] ret = new ImageStack[3];
-	    for (int ang = 0; ang<3; ang++)
-		ret[ang] = new ImageStack( inStack.getWidth(), inStack.getHeight());
+	    final int zDepth = inStack.getSize()/15;
+	    final ImageProcessor [][] sums = new ImageProcessor[3][zDepth];
+	    final int [] idx = AcquisitionOrder.omx( zDepth ).tableRef(
+		AcquisitionOrder.ANGLE, AcquisitionOrder.Z, AcquisitionOrder.PHASE );
 
 	    // loop z and angle
-	    for (int z = 0; z<zDepth; z++) 
-	    for (int ang = 0; ang<3; ang++) {
-		// add a phase projection
-		ret[ang].addSlice( "z="+(z+1) , sumUp( inStack, (ang*zDepth+z)*5 , 5) );
+	    new SimpleMT.PFor(0, 3*zDepth) {
+		@Override
+		public void at(int i) {
+		    final int ang = i/zDepth, z = i%zDepth;
+		    // a phase projection
+		    sums[ang][z] = FrameSum.sum( inStack, idx, (ang*zDepth+z)*5 , 5, outType );
+		}
+	    }.run();
 
+	    // allocate and fill stacks
+	    ImageStack [] ret = new ImageStack[3];
+	    for (int ang = 0; ang<3; ang++) {
+		ret[ang] = new ImageStack( inStack.getWidth(), inStack.getHeight());
+		for (int z = 0; z<zDepth; z++) 
+		    ret[ang].addSlice( "z="+(z+1) , sums[ang][z] );
 	    }
 
 	    // return result(s)
@@ -153,46 +524,12 @@ public class OMX_Splitter implements PlugIn {
 
 	/** Summed up [n,n+m] images (helper function). */
 	ImageProcessor sumUp( ImageStack in, int n , int m ) {
-
-	    
-	    final int w = in.getProcessor(1).getWidth();
-	    final int h = in.getProcessor(1).getHeight();
-	    FloatProcessor ret = new FloatProcessor(w,h);
-	    
-	    // loop the sum
-	    for (int i=n; i<n+m; i++) {
-
-		ImageProcessor cur = in.getProcessor(i+1);
-		for (int y=0;y<h;y++)
-		for (int x=0;x<w;x++)
-		    ret.setf( x,y, ret.getf( x,y) + cur.getf(x,y));
-	    }
-		
-	    return ret;
-
-
+	    return FrameSum.sum( in, n, m, FrameSum.OUT_FLOAT );
 	}
 
-	/** Fade the edges of an ImageProcessor (for FFT with zero padding) */
+	/** Fade the edges of an ImageProcessor (for FFT with zero padding).
+	 *  Uses the precomputed windows of {@link EdgeTaper}. */
 	public static void fadeEdges( ImageProcessor ip , int px, final int w, final int h ) {
-	
-	    final double fac = 1./px * Math.PI/2.;
-	    
-	    // top
-	    for (int y=0; y<px; y++)
-		for (int x=0; x<w ; x++)
-		    ip.setf( x,y, ip.getf(x,y)* (float)Math.pow( Math.sin( y * fac ) , 2 ));
-	    // bottom
-	    for (int y=h-px; y<h; y++)
-		for (int x=0; x<w ; x++)
-		    ip.setf( x,y, ip.getf(x,y)* (float)Math.pow( Math.sin( (h-y-1) * fac ) , 2 ));
-	    // left
-	    for (int y=0; y<h; y++)
-		for (int x=0; x<px ; x++)
-		    ip.setf( x,y, ip.getf(x,y)* (float)Math.pow( Math.sin( x * fac ) , 2 ));
-	    // right
-	    for (int y=0; y<h; y++)
-		for (int x=w-px; x<w ; x++)
-		    ip.setf( x,y, ip.getf(x,y)* (float)Math.pow( Math.sin( (w-x-1) * fac ) , 2 ));
+	    EdgeTaper.fadeEdges( ip, px, w, h );
 	}
 }
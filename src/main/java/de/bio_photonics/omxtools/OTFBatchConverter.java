@@ -0,0 +1,261 @@
+package de.bio_photonics.omxtools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/** Headless batch conversion of a folder (tree) of OMX .otf files
+ *  to fairSIM XML. Each file is stored like 'OTF_Reader' does when
+ *  'Store the OTF' is selected. Files are converted in parallel, and
+ *  a report with per-file timings and failures is written. */
+public class OTFBatchConverter {
+
+    boolean doSave3d = false;		// also save the 3D OTF
+    int defaultWavelength = 515;	// if no wavelength found for a file
+    String dataCodec = "none";		// codec for the stored OTF data
+    int nrThreads = Runtime.getRuntime().availableProcessors();
+    Map<String,Integer> wavelengthMap = new LinkedHashMap<String,Integer>();
+
+    // emission wavelength in the file name, e.g. 'beads_528nm.otf' or 'OTF-605.otf'
+    static final Pattern wlInName = Pattern.compile("(?<![0-9])([3-9][0-9]{2})(?![0-9])");
+
+    /** Result for one file */
+    static class Result {
+	final File in, out;
+	final int wavelength;
+	long timeMs = -1;
+	Exception error = null;
+
+	Result( File in, File out, int wl ) {
+	    this.in  = in;
+	    this.out = out;
+	    this.wavelength = wl;
+	}
+    }
+
+    /** Collect all .otf files in the tree below 'dir' */
+    static void findOTFs( File dir, List<File> ret ) {
+	File [] list = dir.listFiles();
+	if (list==null) return;
+	java.util.Arrays.sort( list );
+	for ( File f : list ) {
+	    if (f.isDirectory())
+		findOTFs( f, ret );
+	    else if (f.getName().toLowerCase().endsWith(".otf"))
+		ret.add( f );
+	}
+    }
+
+    /** Read the wavelength mapping: one 'name wavelength' per line,
+     *  the first name contained in a file's name is used. '#' starts a comment. */
+    void readWavelengthMap( File fObj ) throws IOException {
+	BufferedReader br = new BufferedReader( new FileReader( fObj ));
+	try {
+	    String line;
+	    while ((line = br.readLine())!=null) {
+		int c = line.indexOf('#');
+		if (c>=0) line = line.substring(0,c);
+		line = line.trim();
+		if (line.length()==0) continue;
+		String [] p = line.split("\\s+");
+		if (p.length!=2)
+		    throw new IOException("Cannot parse wavelength map line: "+line);
+		wavelengthMap.put( p[0], Integer.parseInt( p[1] ));
+	    }
+	} finally {
+	    br.close();
+	}
+    }
+
+    /** Find the wavelength for a file: map first, then file name, then default */
+    int getWavelength( File f ) {
+	final String name = f.getName();
+	for ( Map.Entry<String,Integer> e : wavelengthMap.entrySet() )
+	    if (name.contains( e.getKey() ))
+		return e.getValue();
+	Matcher m = wlInName.matcher( name );
+	if (m.find())
+	    return Integer.parseInt( m.group(1) );
+	return defaultWavelength;
+    }
+
+    /** Convert one file */
+    void convert( Result r ) throws Exception {
+	OTF_Reader otfR = new OTF_Reader();
+	otfR.wavelength = r.wavelength;
+	otfR.doSave3d = doSave3d;
+	otfR.dataCodec = dataCodec;
+
+	// do not go through the shared cache, each file is only read once,
+	// and the export reads directly from the mapped file
+	OTFConverter otf = new OTFConverter( r.in, true, false );
+	r.out.getParentFile().mkdirs();
+	otfR.saveOTFprojection( otf, r.out );
+    }
+
+    /** Convert all .otf files below 'inDir', output goes to the same
+     *  relative path in 'outDir'. Returns the results in file order. */
+    public List<Result> convertAll( File inDir, File outDir )
+	throws InterruptedException {
+
+	List<File> files = new ArrayList<File>();
+	findOTFs( inDir, files );
+
+	final String inBase = inDir.getAbsolutePath();
+	List<Result> results = new ArrayList<Result>();
+	List<Future<?>> jobs = new ArrayList<Future<?>>();
+
+	ExecutorService exec = Executors.newFixedThreadPool( Math.max(1, nrThreads ));
+	try {
+	    for ( File f : files ) {
+		String rel = f.getAbsolutePath().substring( inBase.length() );
+		rel = rel.substring( 0, rel.length()-4 )+".xml";
+		final Result r = new Result( f, new File( outDir, rel ), getWavelength(f));
+		results.add( r );
+
+		jobs.add( exec.submit( new Runnable() {
+		    @Override
+		    public void run() {
+			long start = System.nanoTime();
+			try {
+			    convert( r );
+			} catch (Exception e) {
+			    r.error = e;
+			}
+			r.timeMs = (System.nanoTime()-start)/1000000;
+		    }
+		}));
+	    }
+
+	    for ( Future<?> j : jobs ) {
+		try {
+		    j.get();
+		} catch (ExecutionException e) {
+		    // errors are stored in the results, this would be an Error
+		    throw new RuntimeException( e.getCause() );
+		}
+	    }
+	} finally {
+	    exec.shutdownNow();
+	}
+
+	return results;
+    }
+
+    /** Write a summary report */
+    static void writeReport( List<Result> results, long totalMs, PrintWriter pw ) {
+	int failed=0;
+	pw.println("# status  time[ms]  wavelength  input  output  (error)");
+	for ( Result r : results ) {
+	    pw.print( ((r.error==null)?("OK  "):("FAIL"))+"  ");
+	    pw.print( String.format("%8d  %4d  ", r.timeMs, r.wavelength ));
+	    pw.print( r.in.getPath()+"  "+r.out.getPath() );
+	    if (r.error!=null) {
+		pw.print("  "+r.error);
+		failed++;
+	    }
+	    pw.println();
+	}
+	pw.println("# "+results.size()+" files, "+failed+" failed, "+totalMs+" ms total");
+    }
+
+
+    /** Command line entry point, see 'usage' */
+    public static void main( String [] args ) throws Exception {
+
+	OTFBatchConverter bc = new OTFBatchConverter();
+	List<String> dirs = new ArrayList<String>();
+	File reportFile = null;
+	boolean verbose = false;
+
+	try {
+	    for (int i=0; i<args.length; i++) {
+		if (args[i].equals("-3d"))
+		    bc.doSave3d = true;
+		else if (args[i].equals("-w"))
+		    bc.defaultWavelength = Integer.parseInt( args[++i] );
+		else if (args[i].equals("-map"))
+		    bc.readWavelengthMap( new File( args[++i] ));
+		else if (args[i].equals("-codec")) {
+		    bc.dataCodec = args[++i];
+		    DataCodec.forName( bc.dataCodec );	// fail early if unknown
+		}
+		else if (args[i].equals("-t"))
+		    bc.nrThreads = Integer.parseInt( args[++i] );
+		else if (args[i].equals("-report"))
+		    reportFile = new File( args[++i] );
+		else if (args[i].equals("-v"))
+		    verbose = true;
+		else if (args[i].startsWith("-"))
+		    throw new IllegalArgumentException("Unknown option: "+args[i]);
+		else
+		    dirs.add( args[i] );
+	    }
+	    if ((dirs.size()<1)||(dirs.size()>2))
+		throw new IllegalArgumentException("Give input and (optional) output folder");
+	} catch (RuntimeException e) {
+	    System.out.println("Error: "+e.getMessage());
+	    usage();
+	    System.exit(1);
+	    return;
+	}
+
+	final File inDir  = new File( dirs.get(0) );
+	final File outDir = new File( (dirs.size()>1)?(dirs.get(1)):(dirs.get(0)) );
+	if (!inDir.isDirectory()) {
+	    System.out.println("Not a folder: "+inDir);
+	    System.exit(1);
+	}
+	if (reportFile == null)
+	    reportFile = new File( outDir, "otf-batch-report.txt" );
+
+	if (!verbose)
+	    OTFConverter.setLogger( null );
+
+	long start = System.nanoTime();
+	List<Result> res = bc.convertAll( inDir, outDir );
+	long total = (System.nanoTime()-start)/1000000;
+
+	outDir.mkdirs();
+	PrintWriter pw = new PrintWriter( new FileWriter( reportFile ));
+	try {
+	    writeReport( res, total, pw );
+	} finally {
+	    pw.close();
+	}
+
+	PrintWriter so = new PrintWriter( System.out, true );
+	writeReport( res, total, so );
+	so.flush();
+    }
+
+    static void usage() {
+	System.out.println("Usage: OTFBatchConverter [options] input-folder [output-folder]");
+	System.out.println("  Converts all .otf files below input-folder to fairSIM XML");
+	System.out.println("  -3d           also store the 3D OTF");
+	System.out.println("  -w [nm]       default emission wavelength (515)");
+	System.out.println("  -map [file]   wavelength map, lines of 'name-part wavelength'");
+	System.out.println("  -codec [name] encoding of the OTF data: none (default), deflate,");
+	System.out.println("                shuffle-deflate, float16 (lossy)");
+	System.out.println("  -t [n]        number of threads");
+	System.out.println("  -report [f]   report file (default: output-folder/otf-batch-report.txt)");
+	System.out.println("  -v            verbose output");
+	System.out.println("  If no mapping matches, the wavelength is taken from a 3-digit");
+	System.out.println("  number in the file name, or the default is used.");
+    }
+
+}
@@ -0,0 +1,169 @@
+package de.bio_photonics.omxtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/** Process-wide cache of parsed OTFs. Entries are keyed by the
+ *  canonical path, size and modification time of the .otf file, so
+ *  a changed file is read again. The cache is bound by the (heap) bytes
+ *  its OTFs use, least recently used entries are evicted first.
+ *
+ *  The budget of the shared instance can be set through the system
+ *  property 'omxtools.otfcache.bytes' (default: 256 MB).
+ *  */
+public class OTFCache {
+
+    private static final OTFCache shared =
+	new OTFCache( Long.getLong("omxtools.otfcache.bytes", 256L*1024*1024) );
+
+    /** Cache key: file path, size and mtime */
+    static final class Key {
+	final String path;
+	final long size, mtime;
+
+	Key( File f ) throws IOException {
+	    path  = f.getCanonicalPath();
+	    size  = f.length();
+	    mtime = f.lastModified();
+	}
+
+	@Override
+	public boolean equals( Object o ) {
+	    if (!(o instanceof Key))
+		return false;
+	    Key k = (Key)o;
+	    return (path.equals(k.path) && size==k.size && mtime==k.mtime);
+	}
+
+	@Override
+	public int hashCode() {
+	    return path.hashCode()*31 + (int)(size ^ (size>>>32))*17 + (int)(mtime ^ (mtime>>>32));
+	}
+    }
+
+    // access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<Key,OTFConverter> entries =
+	new LinkedHashMap<Key,OTFConverter>(16, 0.75f, true);
+
+    private long maxBytes, curBytes=0;
+    private long hits=0, misses=0, evictions=0;
+
+
+    /** Create a new cache, limited to 'maxBytes' */
+    public OTFCache( long maxBytes ) {
+	this.maxBytes = maxBytes;
+    }
+
+    /** Returns the process-wide shared cache */
+    public static OTFCache shared() {
+	return shared;
+    }
+
+    /** Returns the OTF stored in 'fObj', either from the cache or,
+     *  if not cached, by reading (and caching) it. The returned
+     *  OTF is shared, callers must not modify its data. */
+    public OTFConverter get( File fObj ) throws IOException {
+
+	final Key key = new Key( fObj );
+	synchronized (this) {
+	    OTFConverter otf = entries.get( key );
+	    if (otf!=null) {
+		hits++;
+		return otf;
+	    }
+	    misses++;
+	}
+
+	// parse outside the lock, so other files stay accessible;
+	// read to the heap, as only the planes are kept
+	OTFConverter otf = new OTFConverter( fObj, false, true );
+
+	synchronized (this) {
+	    // another thread might have been faster
+	    OTFConverter present = entries.get( key );
+	    if (present != null)
+		return present;
+
+	    // drop outdated versions of this file
+	    Iterator<Key> it = entries.keySet().iterator();
+	    while (it.hasNext()) {
+		if (it.next().path.equals( key.path ))
+		    it.remove();
+	    }
+
+	    entries.put( key, otf );
+	    evict();
+	}
+	return otf;
+    }
+
+    /** Evict least recently used entries until we are within budget.
+     *  Sizes are re-computed, as OTFs might have materialized additional
+     *  data layouts since they were stored. */
+    private void evict() {
+	curBytes=0;
+	for ( OTFConverter otf : entries.values() )
+	    curBytes += otf.getMemorySize();
+
+	Iterator<Map.Entry<Key,OTFConverter>> it = entries.entrySet().iterator();
+	while ( curBytes > maxBytes && it.hasNext()) {
+	    curBytes -= it.next().getValue().getMemorySize();
+	    it.remove();
+	    evictions++;
+	}
+    }
+
+    /** Set the byte budget, evicts entries if necessary */
+    public synchronized void setMaxBytes( long maxBytes ) {
+	this.maxBytes = maxBytes;
+	evict();
+    }
+
+    /** Remove all entries (counters are kept) */
+    public synchronized void clear() {
+	entries.clear();
+	curBytes=0;
+    }
+
+    /** Reset the hit/miss/eviction counters */
+    public synchronized void resetCounters() {
+	hits=0; misses=0; evictions=0;
+    }
+
+    // ------ access routines ------
+
+    public synchronized long getMaxBytes() {
+	return maxBytes;
+    }
+
+    public synchronized long getBytes() {
+	return curBytes;
+    }
+
+    public synchronized int getSize() {
+	return entries.size();
+    }
+
+    public synchronized long getHits() {
+	return hits;
+    }
+
+    public synchronized long getMisses() {
+	return misses;
+    }
+
+    public synchronized long getEvictions() {
+	return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+	return String.format("OTF cache: %d entries, %d of %d kB, hits %d, misses %d, evictions %d",
+	    entries.size(), curBytes/1024, maxBytes/1024, hits, misses, evictions );
+    }
+
+}
@@ -7,6 +7,7 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 
 
 // TODO: merge this with the OTF_Reader plugin at some point
@@ -14,11 +15,27 @@ import java.nio.IntBuffer;
 /** Plugin to read the OMX OTF files. */
 public class OTFConverter {
 
-    final float [][] bandsData;
+    /** band data, axial-major, interleaved re/im (copied on demand) */
+    private volatile float [][] bandsData = null;
+    /** band data, planar: [band][re,im][lateral*width+axial] (FloatProcessor order, copied on demand) */
+    private volatile float [][][] planes = null;
+    /** samplers (with their grid caches), created on demand */
+    private volatile OTFSampler linearSampler = null, cubicSampler = null;
+    /** band data, read-only views as stored in the file (lateral-major, interleaved re/im),
+     *  null if the OTF was read 'planar' (then only the planes are kept) */
+    private final FloatBuffer [] bandsBuffer;
+    final boolean isMapped;
     final int width, height, nrImg, fType;
     final float micronPerPxlLateral, micronPerPxlAxial;
     
 
+    /** Read in the OMX OTF from file, into a heap buffer.
+     *  See {@link #OTFConverter(File, boolean)}. */
+    public OTFConverter(File fObj) 
+	throws java.io.IOException {
+	this( fObj, false );
+    }
+
     /** Read in the OMX OTF from file.
      *
      *	For all the header bytes and magic number, see 
@@ -28,70 +45,162 @@ public class OTFConverter {
      *	https://www.openmicroscopy.org/site/support/bio-formats5.1/formats/deltavision.html
      *	http://rsb.info.nih.gov/ij/plugins/track/delta.html
      *
+     *  @param fObj    The file to read
+     *  @param mapFile If set, the file is memory-mapped instead of copied
+     *	to the heap. The bands are then only copied to a float [] once
+     *	{@link #getBandsData} is called.
      *  */
-    public OTFConverter(File fObj) 
+    public OTFConverter(File fObj, boolean mapFile) 
+	throws java.io.IOException {
+	this( fObj, mapFile, false );
+    }
+
+    /** Read in the OMX OTF from file, see {@link #OTFConverter(File, boolean)}.
+     *  @param planar If set, the bands are stored only as separate real
+     *	and imaginary planes (see {@link #getPlanes}), de-interleaved
+     *	while reading. The file buffer (or mapping) is not kept, so
+     *	{@link #getBandBuffer} and {@link #getBandsData} copy from the planes.
+     *  */
+    public OTFConverter(File fObj, boolean mapFile, boolean planar) 
 	throws java.io.IOException {
 	
 	// open file for reading
 	ByteBuffer otfImg;
 	{
 	    RandomAccessFile rd = new RandomAccessFile( fObj , "r");
-	    byte [] data = new byte[ (int)rd.length() ];
-	    rd.read( data );
-	    otfImg = ByteBuffer.wrap( data );
-	    short filestamp=(short)(((data[96]&0xff)<<8)|(data[97]&0xff));
-	    
-	    log("Endian: "+filestamp+" "+(short)0xc0a0); 
-	    otfImg.order( java.nio.ByteOrder.LITTLE_ENDIAN );
+	    try {
+		if (mapFile) {
+		    FileChannel fc = rd.getChannel();
+		    otfImg = fc.map( FileChannel.MapMode.READ_ONLY, 0, fc.size() );
+		} else {
+		    byte [] data = new byte[ (int)rd.length() ];
+		    rd.readFully( data );
+		    otfImg = ByteBuffer.wrap( data );
+		}
+	    } finally {
+		rd.close();	// a mapping stays valid after closing
+	    }
 	}
+	isMapped = mapFile;
 
+	// parse the DV header (this also sets the byte order)
+	final DVStackReader.Header hdr = new DVStackReader.Header( otfImg );
+	log("Endian: "+hdr.order); 
 	
 	// First 4 Ints: w, h, #images, plx_type
-	width  = otfImg.getInt(0); 
-	height = otfImg.getInt(4); 
-	nrImg = otfImg.getInt(8); 
-	fType = otfImg.getInt(12);
+	width  = hdr.width; 
+	height = hdr.height; 
+	nrImg  = hdr.nrImg; 
+	fType  = hdr.pxlType;
 	
 	// At byte #92:  size of extended header
-	final int extHeader = otfImg.getInt(92);
+	final int extHeader = hdr.extHeader;
 
 	// try to read in pixel size also
-	micronPerPxlLateral = otfImg.getFloat( 44 );
-	micronPerPxlAxial   = otfImg.getFloat( 40 );
+	micronPerPxlLateral = hdr.pxlSizeY;
+	micronPerPxlAxial   = hdr.pxlSizeX;
 
 	log("w,h,nrImg,Type, lenHeader :"+width+" "+height+" "+nrImg
 		+" "+fType+" "+extHeader);
 	log(String.format(" pxl size, lateral: %6.4f  axial: %6.4f ",
 		micronPerPxlLateral, micronPerPxlAxial));
 	
-	if ((nrImg!=3) || (fType!=4)) {
+	if ((nrImg!=3) || (fType!=DVStackReader.PXL_CPLX32)) {
 	    throw new java.io.IOException("#Images != 3 or pxlType!=cplx\nSeems no OMX OTF file");
 	}
 
 	// std header is 1024 bytes, offset that plus ext header size
 	final int startPxl = extHeader + 1024;
-	otfImg.position( startPxl );
+	final int bandBytes = width*height*2*4;
+	if ( startPxl + 3L*bandBytes > otfImg.capacity() ) {
+	    throw new java.io.IOException("File too short for "+width+"x"+height+" OTF bands");
+	}
 
-	// loop images (should be 3  bands with w*h [real,cplx] each)
-	bandsData = new float[3][ width*height*2 ];
-	
+	// create views on the images (should be 3  bands with w*h [real,cplx] each)
+	final FloatBuffer [] views = new FloatBuffer[3];
 	for (int band=0; band<3; band++) {
-	    for ( int y=0;y<height;y++)
-	    for ( int x=0;x<width;x++) {
-		bandsData[band][ (x*height+y)*2 + 0 ] = otfImg.getFloat();
-		bandsData[band][ (x*height+y)*2 + 1 ] = otfImg.getFloat();
-	    }
+	    otfImg.limit( startPxl + (band+1)*bandBytes );
+	    otfImg.position( startPxl + band*bandBytes );
+	    views[band] = otfImg.slice().order( hdr.order )
+		.asFloatBuffer().asReadOnlyBuffer();
+	    otfImg.clear();
+	}
+
+	// planar: keep only the planes, the file buffer can be collected
+	if (planar) {
+	    planes = deinterleave( views );
+	    bandsBuffer = null;
+	} else {
+	    bandsBuffer = views;
 	}
     }
 
 
     // some simple access routines
     public float getReal( int band, int lateral, int axial ) {
-	return bandsData[band][ 2* ( lateral + axial*height )];
+	float [][][] pl = planes;
+	if (pl!=null)
+	    return pl[band][0][ axial + lateral*width ];
+	float [][] bd = bandsData;
+	if (bd!=null)
+	    return bd[band][ 2* ( lateral + axial*height )];
+	return bandsBuffer[band].get( 2* ( axial + lateral*width ));
     }
     
     public float getImag( int band, int lateral, int axial ) {
-	return bandsData[band][ 2* ( lateral + axial*height )+1];
+	float [][][] pl = planes;
+	if (pl!=null)
+	    return pl[band][1][ axial + lateral*width ];
+	float [][] bd = bandsData;
+	if (bd!=null)
+	    return bd[band][ 2* ( lateral + axial*height )+1];
+	return bandsBuffer[band].get( 2* ( axial + lateral*width )+1);
+    }
+
+    /** Returns a sampler for values at arbitrary frequencies (in cycles/micron),
+     *  interpolated in 'mode' (OTFSampler.LINEAR or CUBIC). There is one
+     *  sampler per mode, so its cached grids are shared by all callers. */
+    public OTFSampler getSampler( int mode ) {
+	if (mode!=OTFSampler.LINEAR && mode!=OTFSampler.CUBIC)
+	    throw new IllegalArgumentException("Unknown interpolation mode "+mode);
+	OTFSampler s = (mode==OTFSampler.LINEAR)?(linearSampler):(cubicSampler);
+	if (s!=null)
+	    return s;
+
+	synchronized (this) {
+	    if (mode==OTFSampler.LINEAR) {
+		if (linearSampler==null)
+		    linearSampler = new OTFSampler( this, mode );
+		return linearSampler;
+	    }
+	    if (cubicSampler==null)
+		cubicSampler = new OTFSampler( this, mode );
+	    return cubicSampler;
+	}
+    }
+
+    /** Returns a read-only view of a band, as stored in the file:
+     *  lateral-major, interleaved real and imaginary part, so
+     *  (lateral, axial) is found at 2*(axial + lateral*width).
+     *  This does not copy the data, so for memory-mapped files
+     *  it reads directly from the mapping. For OTFs read 'planar',
+     *  the band is interleaved from the planes (a copy). */
+    public FloatBuffer getBandBuffer( int band ) {
+	if (bandsBuffer!=null)
+	    return bandsBuffer[band].duplicate();
+	final float [] re = planes[band][0], im = planes[band][1];
+	final float [] ret = new float[ 2*re.length ];
+	for (int i=0; i<re.length; i++) {
+	    ret[ 2*i + 0 ] = re[i];
+	    ret[ 2*i + 1 ] = im[i];
+	}
+	return FloatBuffer.wrap( ret ).asReadOnlyBuffer();
+    }
+
+    /** Returns if the file was memory-mapped (for OTFs read 'planar',
+     *  the mapping is only used while reading) */
+    public boolean isMapped() {
+	return isMapped;
     }
 
 
@@ -133,8 +242,85 @@ public class OTFConverter {
 
     // this could / should become an interface at some point
 
+    /** Returns the band data, axial-major, interleaved re/im.
+     *  Copies from the file buffer on first call. */
     public float [][] getBandsData() {
-	return bandsData;
+	float [][] bd = bandsData;
+	if (bd!=null)
+	    return bd;
+
+	synchronized (this) {
+	    if (bandsData==null) {
+		final float [][] bdn = new float[3][ width*height*2 ];
+		new SimpleMT.PFor(0,3) {
+		    @Override
+		    public void at(int band) {
+			float [] line = new float[ width*2 ];
+			FloatBuffer fb = getBandBuffer( band );
+			for ( int y=0;y<height;y++) {
+			    fb.get( line );
+			    for ( int x=0;x<width;x++) {
+				bdn[band][ (x*height+y)*2 + 0 ] = line[ 2*x + 0 ];
+				bdn[band][ (x*height+y)*2 + 1 ] = line[ 2*x + 1 ];
+			    }
+			}
+		    }
+		}.run();
+		bandsData = bdn;
+	    }
+	    return bandsData;
+	}
+    }
+
+    /** Returns the band data as separate planes, indexed [band][re,im][pxl].
+     *  Each plane is in FloatProcessor order (width: axial, height: lateral),
+     *  so it can be wrapped without copying. The planes are build on first
+     *  call, in one bulk pass parallel over the bands.
+     *  Callers must not modify the returned arrays. */
+    public float [][][] getPlanes() {
+	float [][][] pl = planes;
+	if (pl!=null)
+	    return pl;
+
+	synchronized (this) {
+	    if (planes==null)
+		planes = deinterleave( bandsBuffer );
+	    return planes;
+	}
+    }
+
+    /** split interleaved bands into planes, row by row, parallel over the bands */
+    private float [][][] deinterleave( final FloatBuffer [] bands ) {
+	final float [][][] pln = new float[3][2][ width*height ];
+	new SimpleMT.PFor(0,3) {
+	    @Override
+	    public void at(int band) {
+		final float [] line = new float[ width*2 ];
+		final float [] re = pln[band][0], im = pln[band][1];
+		FloatBuffer fb = bands[band].duplicate();
+		for (int y=0; y<height; y++) {
+		    fb.get( line );
+		    for (int x=0; x<width; x++) {
+			re[ y*width+x ] = line[ 2*x + 0 ];
+			im[ y*width+x ] = line[ 2*x + 1 ];
+		    }
+		}
+	    }
+	}.run();
+	return pln;
+    }
+
+    /** Returns the (approx.) number of heap bytes used by this OTF:
+     *  the file buffer if kept and not memory-mapped, plus all data
+     *  layouts materialized so far. */
+    public long getMemorySize() {
+	final long bandBytes = 8L*width*height;
+	long ret = (isMapped || bandsBuffer==null)?(0):(3*bandBytes);
+	if (bandsData!=null)
+	    ret += 3*bandBytes;
+	if (planes!=null)
+	    ret += 3*bandBytes;
+	return ret;
     }
 
     public int getSamplesLateral() {
@@ -0,0 +1,287 @@
+package de.bio_photonics.omxtools;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/** Samples an OMX OTF at arbitrary spatial frequencies, given in
+ *  cycles/micron. The OTF is rotationally symmetric, so it is looked up
+ *  by lateral radius and axial frequency. Values between the samples
+ *  are interpolated bilinearly or bicubically (Catmull-Rom). Axial
+ *  frequencies wrap around (negative frequencies are stored in the upper
+ *  half, as in an FFT), lateral frequencies beyond the last sample are 0.
+ *
+ *  Whole frequency grids (as seen by an FFT of an image) can be sampled
+ *  at once, these are cached per (band, image size, pixel size). */
+public class OTFSampler {
+
+    /** interpolation modes */
+    public static final int LINEAR=0, CUBIC=1;
+
+    /** cycles/micron per sample in OMX OTFs, if not in the header */
+    public static final double DEFAULT_CYCLES_LATERAL = 0.048828, DEFAULT_CYCLES_AXIAL = 0.12307;
+
+    final float [][][] planes;	// [band][re,im][axial + lateral*nAx]
+    final int nLat, nAx, nBands;
+    final double cycLat, cycAx;	// cycles/micron per sample
+    final int mode;
+
+    // resampled grids, least recently used first
+    private final LinkedHashMap<GridKey,float []> grids =
+	new LinkedHashMap<GridKey,float []>(16, 0.75f, true);
+    private long maxGridBytes = 64L*1024*1024, curGridBytes = 0;
+
+    /** Sample 'otf', with pixel sizes from its header (or the usual
+     *  OMX values, if the header does not contain them) */
+    public OTFSampler( OTFConverter otf, int mode ) {
+	this( otf.getPlanes(), otf.getSamplesLateral(), otf.getSamplesAxial(),
+	    cyclesOrDefault( otf.getCyclesPerMicronLateral(), DEFAULT_CYCLES_LATERAL ),
+	    cyclesOrDefault( otf.getCyclesPerMicronAxial(), DEFAULT_CYCLES_AXIAL ), mode );
+    }
+
+    /** Sample planar OTF data (as returned by OTFConverter.getPlanes)
+     *  with 'cycLat', 'cycAx' cycles/micron between samples */
+    public OTFSampler( float [][][] planes, int nLat, int nAx,
+	double cycLat, double cycAx, int mode ) {
+	if (mode!=LINEAR && mode!=CUBIC)
+	    throw new IllegalArgumentException("Unknown interpolation mode "+mode);
+	if (!(cycLat>0) || !(cycAx>0))
+	    throw new IllegalArgumentException("Cycles per sample have to be positive");
+	this.planes = planes;
+	this.nBands = planes.length;
+	this.nLat   = nLat;
+	this.nAx    = nAx;
+	this.cycLat = cycLat;
+	this.cycAx  = cycAx;
+	this.mode   = mode;
+    }
+
+    /** Returns 'v' if it is a usable pixel size, 'def' otherwise */
+    static double cyclesOrDefault( double v, double def ) {
+	return (v>0 && !Double.isInfinite(v) && !Double.isNaN(v))?(v):(def);
+    }
+
+    /** Number of bands */
+    public int getNrBands() {
+	return nBands;
+    }
+
+
+    // ------ single values ------
+
+    /** Returns the OTF of 'band' at lateral frequency 'kr' and axial
+     *  frequency 'kz' (both in cycles/micron), as {re, im} */
+    public float [] get( int band, double kr, double kz ) {
+	float [] ret = new float[2];
+	get( band, kr, kz, ret, 0 );
+	return ret;
+    }
+
+    /** Stores the OTF of 'band' at (kr, kz) in out[off], out[off+1] */
+    public void get( int band, double kr, double kz, float [] out, int off ) {
+	get( band, kr, kz, out, off, scratch() );
+    }
+
+    /** As above, with scratch space 'w' (8 floats, needed for CUBIC),
+     *  so loops over many samples can reuse it */
+    void get( int band, double kr, double kz, float [] out, int off, float [] w ) {
+	final double l = Math.abs(kr)/cycLat, a = kz/cycAx;
+	final float [] re = planes[band][0], im = planes[band][1];
+	if (mode == LINEAR)
+	    linear( re, im, l, a, out, off );
+	else
+	    cubic( re, im, l, a, out, off, w );
+    }
+
+    /** scratch space for 'get', null if not needed */
+    float [] scratch() {
+	return (mode==CUBIC)?(new float[8]):(null);
+    }
+
+    /** Sample 'band' at all (kr[i], kz[i]), results interleaved (re, im) */
+    public float [] get( final int band, final double [] kr, final double [] kz ) {
+	if (kr.length != kz.length)
+	    throw new IllegalArgumentException("Need the same number of kr and kz values");
+	final float [] ret = new float[ 2*kr.length ];
+	final int chunk = 4096;
+	new SimpleMT.PFor(0, (kr.length+chunk-1)/chunk) {
+	    @Override
+	    public void at(int c) {
+		final int end = Math.min( kr.length, (c+1)*chunk );
+		final float [] w = scratch();
+		for (int i=c*chunk; i<end; i++)
+		    get( band, kr[i], kz[i], ret, 2*i, w );
+	    }
+	}.run();
+	return ret;
+    }
+
+
+    // ------ interpolation ------
+
+    /** axial index, wrapped to [0,nAx) */
+    private int wrap( int a ) {
+	a %= nAx;
+	return (a<0)?(a+nAx):(a);
+    }
+
+    private void linear( float [] re, float [] im, double l, double a, float [] out, int off ) {
+	final int l0 = (int)Math.floor(l), a0 = (int)Math.floor(a);
+	final float fl = (float)(l-l0), fa = (float)(a-a0);
+	if (l0 >= nLat) {
+	    out[off] = out[off+1] = 0;
+	    return;
+	}
+	final int i00 = l0*nAx + wrap(a0), i01 = l0*nAx + wrap(a0+1);
+	float r = (1-fl)*((1-fa)*re[i00] + fa*re[i01]);
+	float i = (1-fl)*((1-fa)*im[i00] + fa*im[i01]);
+	if (l0+1 < nLat) {
+	    final int i10 = (l0+1)*nAx + wrap(a0), i11 = (l0+1)*nAx + wrap(a0+1);
+	    r += fl*((1-fa)*re[i10] + fa*re[i11]);
+	    i += fl*((1-fa)*im[i10] + fa*im[i11]);
+	}
+	out[off]   = r;
+	out[off+1] = i;
+    }
+
+    /** Catmull-Rom weights for fraction 't', stored at w[o..o+3] */
+    static void cubicWeights( float t, float [] w, int o ) {
+	final float t2 = t*t, t3 = t2*t;
+	w[o]   = (-t3 + 2*t2 - t)/2;
+	w[o+1] = (3*t3 - 5*t2 + 2)/2;
+	w[o+2] = (-3*t3 + 4*t2 + t)/2;
+	w[o+3] = (t3 - t2)/2;
+    }
+
+    /** cubic interpolation, 'w' holds the lateral (0..3) and axial (4..7) weights */
+    private void cubic( float [] re, float [] im, double l, double a, float [] out, int off,
+	float [] w ) {
+	final int l0 = (int)Math.floor(l), a0 = (int)Math.floor(a);
+	if (l0 >= nLat+1) {
+	    out[off] = out[off+1] = 0;
+	    return;
+	}
+	cubicWeights( (float)(l-l0), w, 0 );
+	cubicWeights( (float)(a-a0), w, 4 );
+
+	float r=0, i=0;
+	for (int dl=-1; dl<=2; dl++) {
+	    int li = l0+dl;
+	    if (li<0) li=-li;	    // symmetric around kr=0
+	    if (li>=nLat) continue; // 0 beyond the last sample
+	    float rr=0, ii=0;
+	    for (int da=-1; da<=2; da++) {
+		final int idx = li*nAx + wrap(a0+da);
+		rr += w[da+5]*re[idx];
+		ii += w[da+5]*im[idx];
+	    }
+	    r += w[dl+1]*rr;
+	    i += w[dl+1]*ii;
+	}
+	out[off]   = r;
+	out[off+1] = i;
+    }
+
+
+    // ------ grids ------
+
+    /** Returns the OTF of 'band' sampled on the frequency grid of an FFT
+     *  of a nx x ny x nz image with pixel size 'pxlXY', 'pxlZ' (microns),
+     *  interleaved (re, im) at [(z*ny + y)*nx + x], zero frequency at
+     *  index 0. For nz=1, this is the kz=0 plane. Grids are computed in
+     *  parallel over z and y, and cached: callers must not modify them. */
+    public float [] getGrid( final int band, final int nx, final int ny, final int nz,
+	final double pxlXY, final double pxlZ ) {
+
+	final GridKey key = new GridKey( band, nx, ny, nz, pxlXY, pxlZ );
+	synchronized (grids) {
+	    float [] g = grids.get( key );
+	    if (g!=null)
+		return g;
+	}
+
+	final float [] ret = new float[ 2*nx*ny*nz ];
+
+	// lateral radius is the same for all z
+	final double [] kr = new double[ nx*ny ];
+	for (int y=0; y<ny; y++) {
+	    final double ky = freq( y, ny, pxlXY );
+	    for (int x=0; x<nx; x++) {
+		final double kx = freq( x, nx, pxlXY );
+		kr[ y*nx+x ] = Math.sqrt( kx*kx + ky*ky );
+	    }
+	}
+
+	new SimpleMT.PFor(0, nz*ny) {
+	    @Override
+	    public void at(int zy) {
+		final int z = zy/ny, y = zy%ny;
+		final double kz = (nz>1)?(freq( z, nz, pxlZ )):(0);
+		final float [] w = scratch();
+		for (int x=0; x<nx; x++)
+		    get( band, kr[y*nx+x], kz, ret, 2*(zy*nx+x), w );
+	    }
+	}.run();
+
+	synchronized (grids) {
+	    if (!grids.containsKey( key )) {
+		grids.put( key, ret );
+		curGridBytes += 4L*ret.length;
+		Iterator<Map.Entry<GridKey,float []>> it = grids.entrySet().iterator();
+		while (curGridBytes > maxGridBytes && grids.size()>1 && it.hasNext()) {
+		    Map.Entry<GridKey,float []> e = it.next();
+		    curGridBytes -= 4L*e.getValue().length;
+		    it.remove();
+		}
+	    }
+	}
+	return ret;
+    }
+
+    /** FFT frequency (cycles/micron) of index 'i' of 'n' samples 'pxl' microns apart */
+    static double freq( int i, int n, double pxl ) {
+	return ((i<=n/2)?(i):(i-n)) / (n*pxl);
+    }
+
+    /** Limit the memory used by cached grids (default 64 MB) */
+    public void setGridCacheBytes( long bytes ) {
+	synchronized (grids) {
+	    maxGridBytes = bytes;
+	    Iterator<Map.Entry<GridKey,float []>> it = grids.entrySet().iterator();
+	    while (curGridBytes > maxGridBytes && it.hasNext()) {
+		curGridBytes -= 4L*it.next().getValue().length;
+		it.remove();
+	    }
+	}
+    }
+
+    /** Cache key: band, grid size and pixel sizes */
+    static final class GridKey {
+	final int band, nx, ny, nz;
+	final double pxlXY, pxlZ;
+
+	GridKey( int band, int nx, int ny, int nz, double pxlXY, double pxlZ ) {
+	    this.band = band;
+	    this.nx = nx; this.ny = ny; this.nz = nz;
+	    this.pxlXY = pxlXY;
+	    this.pxlZ  = (nz>1)?(pxlZ):(0);
+	}
+
+	@Override
+	public boolean equals( Object o ) {
+	    if (!(o instanceof GridKey))
+		return false;
+	    GridKey k = (GridKey)o;
+	    return (band==k.band && nx==k.nx && ny==k.ny && nz==k.nz
+		&& pxlXY==k.pxlXY && pxlZ==k.pxlZ);
+	}
+
+	@Override
+	public int hashCode() {
+	    long b = Double.doubleToLongBits(pxlXY)*31 + Double.doubleToLongBits(pxlZ);
+	    return (((band*31 + nx)*31 + ny)*31 + nz)*31 + (int)(b ^ (b>>>32));
+	}
+    }
+
+}
@@ -0,0 +1,167 @@
+package de.bio_photonics.omxtools;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+
+/** Renders the power spectra (and, optionally, phases) of the
+ *  OTF bands, as displayed by 'OTF_Reader'. Rows are computed in
+ *  parallel over all bands, phases are only computed if requested. */
+public class OTFSpectrumRenderer {
+
+    boolean doMirror= true;		// mirror OTF to neg. x/y axis
+    boolean doLogPw = true;		// display pwSpec logarithmic
+    boolean doCenterDcZ = true;		// wrap the DC peak to center of y-axis
+    boolean doPhases = false;		// add the phases
+    boolean doFastMath = false;		// use table-based log and atan2
+
+    // values below are clipped when displaying log. spectra
+    static final double logThreshold = 1e-3;
+
+    public OTFSpectrumRenderer( boolean mirror, boolean logPw, boolean centerDcZ,
+	boolean phases, boolean fastMath ) {
+	doMirror = mirror;
+	doLogPw = logPw;
+	doCenterDcZ = centerDcZ;
+	doPhases = phases;
+	doFastMath = fastMath;
+    }
+
+    /** Render the spectra of the 6 raw OTF planes (re, im for 3 bands),
+     *  as returned by 'OTF_Reader.readOTFs'. */
+    public ImageStack render( FloatProcessor [] raw ) {
+
+	final int w=raw[0].getWidth(), h=raw[0].getHeight();
+	final int outW = (doMirror)?(2*h):(h);
+	final int outH = w;
+	// if mirror, offset x coordinate to center
+	final int offX = (doMirror)?(outW/2):(0);
+
+	final float [][] inRe  = new float[3][];
+	final float [][] inIm  = new float[3][];
+	final float [][] outMag = new float[3][ outW*outH ];
+	final float [][] outPha = new float[3][];
+	for (int b=0;b<3;b++) {
+	    inRe[b] = (float [])raw[2*b+0].getPixels();
+	    inIm[b] = (float [])raw[2*b+1].getPixels();
+	    if (doPhases)
+		outPha[b] = new float[ outW*outH ];
+	}
+
+	final double logMin  = Math.log( logThreshold );
+	final double sqrThreshold = logThreshold*logThreshold;
+
+	// each input column (axial position) becomes one output row
+	new SimpleMT.PFor(0, 3*w) {
+	    @Override
+	    public void at(int i) {
+		final int b = i/w, x = i%w;
+		final float [] re = inRe[b], im = inIm[b];
+		final float [] mag = outMag[b], pha = outPha[b];
+
+		// center the z-DC peak in y
+		final int oy = (doCenterDcZ)?( (x+w/2)%w ):(x);
+		final int row = oy*outW;
+
+		for (int y=0;y<h;y++) {
+		    final float r = re[ y*w+x ], c = im[ y*w+x ];
+		    final double sqr = (double)r*r + (double)c*c;
+		    float m;
+
+		    // if asked, calc log of spectrum
+		    if (!doLogPw) {
+			m = (float)Math.sqrt( sqr );
+		    } else if (doFastMath) {
+			m = (sqr < sqrThreshold)?((float)logMin):(0.5f * FastMath.log( (float)sqr ));
+		    } else {
+			m = (float)Math.sqrt( sqr );
+			m = (float)((m>=logThreshold)?(Math.log(m)):(logMin));
+		    }
+		    mag[ row + offX + y ] = m;
+
+		    if (doPhases) {
+			pha[ row + offX + y ] = (doFastMath)?(FastMath.atan2( c, r )):
+			    ((float)Math.atan2( c, r ));
+		    }
+		}
+
+		// if requested, add values to neg. x/y-axis (the positive half, reversed)
+		if (doMirror) {
+		    for (int y=0;y<h;y++)
+			mag[ row + outW - offX - y ] = mag[ row + offX + y ];
+		    if (doPhases)
+			for (int y=0;y<h;y++)
+			    pha[ row + outW - offX - y ] = pha[ row + offX + y ];
+		}
+	    }
+	}.run();
+
+	ImageStack pwSt = new ImageStack( outW, outH );
+	for (int b=0;b<3;b++) {
+	    String label ="band "+b+" (mag"+( (doLogPw)?(",log)"):(")") );
+	    pwSt.addSlice(label, new FloatProcessor( outW, outH, outMag[b], null ));
+	    if (doPhases)
+		pwSt.addSlice("band "+b+" (phase)",
+		    new FloatProcessor( outW, outH, outPha[b], null ));
+	}
+	return pwSt;
+    }
+
+
+    /** Table-based approximations of log and atan2, for display purposes.
+     *  Both interpolate linearly between 1025 table entries.
+     *	<ul>
+     *	<li>log: absolute error below 2e-7 (for normalized, positive floats)
+     *	<li>atan2: absolute error below 2e-7 rad
+     *	</ul>
+     *	(plus float rounding of the result).
+     *  */
+    static final class FastMath {
+
+	static final int TBL_BITS = 10;
+	static final int TBL_SIZE = 1<<TBL_BITS;
+
+	// ln(1+t) and atan(t) for t in [0,1], sampled at i/TBL_SIZE
+	static final float [] logTbl  = new float[ TBL_SIZE+1 ];
+	static final float [] atanTbl = new float[ TBL_SIZE+1 ];
+
+	static final double LN2 = Math.log(2);
+
+	static {
+	    for (int i=0; i<=TBL_SIZE; i++) {
+		logTbl[i]  = (float)Math.log( 1 + (double)i/TBL_SIZE );
+		atanTbl[i] = (float)Math.atan( (double)i/TBL_SIZE );
+	    }
+	}
+
+	/** ln(x), for positive, normalized x */
+	static float log( float x ) {
+	    final int bits = Float.floatToRawIntBits( x );
+	    final int exp  = ((bits>>>23)&0xff) - 127;
+	    final int mant = bits & 0x7fffff;
+	    // table index from the upper mantissa bits, interpolate with the lower ones
+	    final int idx  = mant >>> (23-TBL_BITS);
+	    final double frac = (mant & ((1<<(23-TBL_BITS))-1)) * (1./(1<<(23-TBL_BITS)));
+	    return (float)( exp*LN2 + logTbl[idx] + frac*(logTbl[idx+1]-logTbl[idx]) );
+	}
+
+	/** atan2(y,x) */
+	static float atan2( float y, float x ) {
+	    final float ax = Math.abs(x), ay = Math.abs(y);
+	    if (ax==0 && ay==0)
+		return 0;
+
+	    // reduce to [0,1], then map back to the octant
+	    final boolean swap = ay > ax;
+	    final double p = ((swap)?((double)ax/ay):((double)ay/ax)) * TBL_SIZE;
+	    final int idx = Math.min( (int)p, TBL_SIZE-1 );
+	    double a = atanTbl[idx] + (p-idx)*(atanTbl[idx+1]-atanTbl[idx]);
+
+	    if (swap)  a = Math.PI/2 - a;
+	    if (x < 0) a = Math.PI - a;
+	    if (y < 0) a = -a;
+	    return (float)a;
+	}
+    }
+
+}
@@ -0,0 +1,126 @@
+package de.bio_photonics.omxtools;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/** One band of the full 3D OTF (kx, ky, kz) on the frequency grid of a
+ *  nx x ny x nz image, expanded from the rotationally symmetric OTF
+ *  data by an {@link OTFSampler}. The volume is never held densely:
+ *  it is computed in tiles (a block of rows of one z plane) on demand,
+ *  in parallel, and a bounded number of tiles is cached. Values are
+ *  complex, interleaved (re, im), in FFT order (zero frequency at 0). */
+public class OTFVolume {
+
+    final OTFSampler sampler;
+    final int band, nx, ny, nz;
+    final double pxlXY, pxlZ;
+    final int tileRows, tilesPerPlane;
+
+    // computed tiles, least recently used first
+    private final LinkedHashMap<Integer,float []> tiles =
+	new LinkedHashMap<Integer,float []>(16, 0.75f, true);
+    private int maxTiles;
+
+    /** Volume of 'band' for a nx x ny x nz image with pixel sizes
+     *  'pxlXY', 'pxlZ' (microns), caching at most 'cacheBytes' of tiles */
+    public OTFVolume( OTFSampler sampler, int band, int nx, int ny, int nz,
+	double pxlXY, double pxlZ, long cacheBytes ) {
+	if (band<0 || band>=sampler.getNrBands())
+	    throw new IndexOutOfBoundsException("No band "+band);
+	this.sampler = sampler;
+	this.band = band;
+	this.nx = nx;
+	this.ny = ny;
+	this.nz = nz;
+	this.pxlXY = pxlXY;
+	this.pxlZ  = pxlZ;
+
+	// tiles of about 256 kB
+	tileRows = Math.max( 1, Math.min( ny, (32*1024)/nx ));
+	tilesPerPlane = (ny+tileRows-1)/tileRows;
+	setCacheBytes( cacheBytes );
+    }
+
+    /** Limit the memory used by cached tiles (at least one plane is kept) */
+    public void setCacheBytes( long bytes ) {
+	synchronized (tiles) {
+	    maxTiles = (int)Math.max( tilesPerPlane,
+		Math.min( Integer.MAX_VALUE, bytes/(8L*nx*tileRows) ));
+	    trim();
+	}
+    }
+
+    private void trim() {
+	Iterator<Integer> it = tiles.keySet().iterator();
+	while (tiles.size() > maxTiles && it.hasNext()) {
+	    it.next();
+	    it.remove();
+	}
+    }
+
+    /** Number of tiles currently cached */
+    public int getCachedTiles() {
+	synchronized (tiles) {
+	    return tiles.size();
+	}
+    }
+
+    /** Returns the value at (x,y,z) as {re, im} */
+    public float [] get( int x, int y, int z ) {
+	final float [] t = tile( z, y/tileRows );
+	final int i = 2*((y%tileRows)*nx + x);
+	return new float [] { t[i], t[i+1] };
+    }
+
+    /** Returns plane 'z', nx*ny complex values */
+    public float [] getPlane( int z ) {
+	return getPlane( z, new float[ 2*nx*ny ] );
+    }
+
+    /** Copies plane 'z' into 'buf' (nx*ny complex values) and returns it.
+     *  Missing tiles are computed in parallel. Reusing 'buf' while
+     *  stepping through z streams the volume in constant memory. */
+    public float [] getPlane( final int z, final float [] buf ) {
+	if (z<0 || z>=nz)
+	    throw new IndexOutOfBoundsException("z="+z+" out of range");
+	new SimpleMT.PFor(0, tilesPerPlane) {
+	    @Override
+	    public void at(int ty) {
+		final float [] t = tile( z, ty );
+		System.arraycopy( t, 0, buf, 2*ty*tileRows*nx, t.length );
+	    }
+	}.run();
+	return buf;
+    }
+
+    /** returns tile 'ty' of plane 'z', computes it if not cached */
+    float [] tile( int z, int ty ) {
+	final Integer key = z*tilesPerPlane + ty;
+	synchronized (tiles) {
+	    float [] t = tiles.get( key );
+	    if (t!=null)
+		return t;
+	}
+
+	final int y0 = ty*tileRows, rows = Math.min( tileRows, ny-y0 );
+	final float [] t = new float[ 2*rows*nx ];
+	final double kz = (nz>1)?(OTFSampler.freq( z, nz, pxlZ )):(0);
+	final float [] w = sampler.scratch();
+	for (int r=0; r<rows; r++) {
+	    final double ky = OTFSampler.freq( y0+r, ny, pxlXY );
+	    for (int x=0; x<nx; x++) {
+		final double kx = OTFSampler.freq( x, nx, pxlXY );
+		sampler.get( band, Math.sqrt( kx*kx + ky*ky ), kz, t, 2*(r*nx+x), w );
+	    }
+	}
+
+	synchronized (tiles) {
+	    tiles.put( key, t );
+	    trim();
+	}
+	return t;
+    }
+
+}
@@ -33,9 +33,11 @@ public class OTF_Reader implements PlugIn {
     boolean doCenterDcZ = true;		// wrap the DC peak to center of y-axis
     boolean doDisplayRaw = false;	// display raw input data
     boolean doDisplayPhases = false;	// add the phases
+    boolean doFastMath = false;		// approx. (table-based) log and atan2
     boolean doSaveProjection = false;	// save the z-projection to text file
     int     wavelength = 515;		// emission wavelength
     boolean doSave3d = false;		// save full 3d OTF
+    String  dataCodec = "none";		// codec for stored OTF data, see DataCodec
 
     static int verbose = 0;			// verbosity of (debug) output
 
@@ -59,13 +61,17 @@ public class OTF_Reader implements PlugIn {
 	if (showDialog()==-1) return;
 
 	// read in raw OTFs
+	OTFConverter otf = null;
 	FloatProcessor [] rawOtfs = null;
 	try {
-	    rawOtfs = readOTFs( fObj );
+	    otf = OTFCache.shared().get( fObj );
+	    rawOtfs = readOTFs( otf );
 	} catch (java.io.IOException e) {
 	    IJ.showMessage("ERR: "+e);
 	    return;
 	}
+	if (verbose>0)
+	    IJ.log( OTFCache.shared().toString() );
 	
 
 	// save their 2d projection
@@ -82,7 +88,7 @@ public class OTF_Reader implements PlugIn {
 	    }
 
 	    try {
-		saveOTFprojection( rawOtfs, fSaveObj );
+		saveOTFprojection( otf, fSaveObj );
 	    } catch (Exception e) {
 		IJ.showMessage("Error saving: "+e);
 		return;
@@ -107,58 +113,16 @@ public class OTF_Reader implements PlugIn {
 	    for (int b=0;b<3;b++)
 	    for (int c=0;c<2;c++) {
 		String label = "band "+b+" ("+((c==0)?("re"):("im"))+")";
-		rawSt.addSlice(label, raw[2*b+c]);
+		// copy, as the raw data might be shared with the OTF cache
+		rawSt.addSlice(label, raw[2*b+c].duplicate());
 	    }
 	    ImagePlus ipRaw = new ImagePlus("raw OTF", rawSt);
 	    ipRaw.show();
 	}
 
 	// output power spectra
-	int outW = (doMirror)?(2*h):(h);
-	int outH = w;
-	ImageStack pwSt = new ImageStack( outW,w);
-	
-	for (int b=0;b<3;b++) {
-
-	    FloatProcessor outMag = new FloatProcessor(outW,outH);
-	    FloatProcessor outPha = new FloatProcessor(outW,outH);
-	    
-	    for (int y=0;y<h;y++)
-	    for (int x=0;x<w;x++) {
-		float re = raw[2*b+0].getf(x,y);
-		float im = raw[2*b+1].getf(x,y);
-		
-		float mag = (float)Math.hypot( re,im );
-		float pha = (float)Math.atan2( im,re );
-
-		// if asked, calc log of spectrum
-		if (doLogPw) {
-		    double t=1e-3;
-		    mag = (float)((mag>=t)?(Math.log(mag)):(Math.log(t)));
-		}
-
-		// center the z-DC peak in y
-		int oy = (doCenterDcZ)?( (x+w/2)%w ):(x);
-		// if mirror, offset x coordinate to center
-		int ox = y+((doMirror)?(outW/2):(0));
-
-		// add values for pos x/y position
-		outMag.setf( ox, oy, mag ); 
-		outPha.setf( ox, oy, pha ); 
-		
-		// if requested, add values to neg. x/y-axis
-		if (doMirror) {
-		    outMag.setf( outW-ox, oy, mag ); 
-		    outPha.setf( outW-ox, oy, pha ); 
-		}
-
-	    }
-
-	    String label ="band "+b+" (mag"+( (doLogPw)?(",log)"):(")") );
-	    pwSt.addSlice(label, outMag);
-	    if (doDisplayPhases)
-		pwSt.addSlice("band "+b+" (phase)", outPha);	
-	}
+	ImageStack pwSt = new OTFSpectrumRenderer( doMirror, doLogPw, doCenterDcZ,
+	    doDisplayPhases, doFastMath ).render( raw );
 
 	ImagePlus ipPw = new ImagePlus("OTF power spec.", pwSt );
 	ipPw.show();
@@ -177,41 +141,88 @@ public class OTF_Reader implements PlugIn {
      *	https://www.openmicroscopy.org/site/support/bio-formats5.1/formats/deltavision.html
      *	http://rsb.info.nih.gov/ij/plugins/track/delta.html
      *
+     *	The OTF is taken from the shared {@link OTFCache} if possible.
+     *	The processors hold copies, so they can be modified freely.
      *  */
     static public FloatProcessor [] readOTFs(File fObj) 
 	throws java.io.IOException {
 	
+	OTFConverter otfConverter = OTFCache.shared().get( fObj );
+	FloatProcessor [] ret = readOTFs( otfConverter );
+	for (int i=0; i<ret.length; i++)
+	    ret[i] = new FloatProcessor( ret[i].getWidth(), ret[i].getHeight(),
+		((float [])ret[i].getPixels()).clone(), null );
+	return ret;
+    }
+
+    /** Returns 6 FloatProcessors wrapping the planar OTF data of 'otf'.
+     *  The pixel arrays are shared with 'otf', not copied. */
+    static public FloatProcessor [] readOTFs(OTFConverter otf) {
+	
 	FloatProcessor [] ret= new FloatProcessor[6];
-	OTFConverter otfConverter = new OTFConverter( fObj);
+	final float [][][] planes = otf.getPlanes();
 
-	final int w = otfConverter.width;
-	final int h = otfConverter.height;
+	final int w = otf.width;
+	final int h = otf.height;
 
 	for (int band=0; band<3; band++) {
-	    ret[band*2+0] = new FloatProcessor(w,h);
-	    ret[band*2+1] = new FloatProcessor(w,h);
-
-	    for ( int y=0;y<h;y++)
-	    for ( int x=0;x<w;x++) {
-		ret[band*2+0].setf( x,y, otfConverter.getReal(band,y,x) );
-		ret[band*2+1].setf( x,y, otfConverter.getImag(band,y,x) );
-	    }
-
+	    ret[band*2+0] = new FloatProcessor(w,h, planes[band][0], null );
+	    ret[band*2+1] = new FloatProcessor(w,h, planes[band][1], null );
 	}
 	
 	return ret;
     }
 
 
-    /** Calculate and store the 2d projection of the OTF */
-    void saveOTFprojection(FloatProcessor [] raw, File fObj) 
+    /** Access to OTF values by (band, re/im, lateral, axial) */
+    static abstract class OTFAccess {
+	abstract float get( int band, int c, int lateral, int axial );
+    }
+
+    /** Calculate and store the 2d projection of the OTF (and the
+     *  3D OTF, if 'doSave3d' is set). Values are read directly
+     *  from 'otf', and the 3D data is streamed to the file, so
+     *  no copy of the (3D) OTF is held in memory. */
+    void saveOTFprojection(final OTFConverter otf, File fObj) 
 	throws IOException, Conf.SomeIOException {
 	
+	saveOTFprojection( new OTFAccess() {
+	    @Override
+	    float get( int band, int c, int lateral, int axial ) {
+		return (c==0)?(otf.getReal( band, lateral, axial)):
+		    (otf.getImag( band, lateral, axial ));
+	    }
+	}, otf.width, otf.height,
+	    OTFSampler.cyclesOrDefault( otf.getCyclesPerMicronLateral(), OTFSampler.DEFAULT_CYCLES_LATERAL ),
+	    OTFSampler.cyclesOrDefault( otf.getCyclesPerMicronAxial(), OTFSampler.DEFAULT_CYCLES_AXIAL ),
+	    fObj );
+    }
+
+    /** Calculate and store the 2d projection of the OTF, see
+     *  {@link #saveOTFprojection(OTFConverter, File)}. Without
+     *  header, the default OMX pixel sizes are stored. */
+    void saveOTFprojection(FloatProcessor [] raw, File fObj) 
+	throws IOException, Conf.SomeIOException {
 	
-	//FileWriter fr = new FileWriter( fObj);
-	//fr.write("# OTF sizes xy "+w+", sum z over "+h+"\n");
 	final int w=raw[0].getWidth(), h=raw[0].getHeight();
+	final float [][] pxl = new float[6][];
+	for (int i=0; i<6; i++)
+	    pxl[i] = (float [])raw[i].getPixels();
+
+	saveOTFprojection( new OTFAccess() {
+	    @Override
+	    float get( int band, int c, int lateral, int axial ) {
+		return pxl[ band*2+c ][ axial + lateral*w ];
+	    }
+	}, w, h, OTFSampler.DEFAULT_CYCLES_LATERAL, OTFSampler.DEFAULT_CYCLES_AXIAL, fObj );
+    }
 
+    /** Calculate and store the 2d projection of the OTF, with
+     *  'cycLat', 'cycAx' cycles/micron between samples */
+    private void saveOTFprojection(final OTFAccess raw, final int w, final int h,
+	double cycLat, double cycAx, File fObj) 
+	throws IOException, Conf.SomeIOException {
+	
 	Conf cfg = new Conf("fairsim");
 	Conf.Folder otf = cfg.r().mk("otf2d");
 
@@ -222,47 +233,28 @@ public class OTF_Reader implements PlugIn {
 	Conf.Folder data =otf.mk("data");
 
 	data.newInt("bands" ).setVal(3);
-	data.newDbl("cycles").setVal( 0.048828 );
+	data.newDbl("cycles").setVal( cycLat );
 	data.newInt("samples" ).setVal(h);
 
-	byte [][] band   = new byte[3][ 2 * 4 * h ];
-	byte [][] band3d = new byte[3][ 2 * 4 * h * w ];
-	FloatBuffer [] fb   = new FloatBuffer[3];
-	FloatBuffer [] fb3d = new FloatBuffer[3];
-	for (int i=0; i<3; i++) {
-	      fb[i] = ByteBuffer.wrap(  band[i]).asFloatBuffer();
-	    fb3d[i] = ByteBuffer.wrap(band3d[i]).asFloatBuffer();
-	}
-
+	// sum up 2D projection (this is small, 3 bands x h samples)
+	for (int b=0;b<3;b++) {
+	    byte [] band = new byte[ 2 * 4 * h ];
+	    FloatBuffer fb = ByteBuffer.wrap( band ).asFloatBuffer();
 
-	// sum up 2D projection
-	for (int xy=0;xy<h;xy++) {
-	    float [][] sum = new float[3][2];
-	    
-	    // loop bands, re/im
-	    for (int b=0;b<3;b++)
+	    for (int xy=0;xy<h;xy++)
 	    for (int c=0;c<2;c++) {
 		// sum z
+		float sum = 0;
 		for (int z=0;z<w;z++) {
-		    sum[b][c] += raw[b*2+c].getf(z,xy);
+		    sum += raw.get( b, c, xy, z );
 		}
 		// add to output
-		fb[b].put(sum[b][c]);
+		fb.put( sum );
 	    }
+	    data.newData("band-"+b).setVal( band ).setCodec( dataCodec );
 	}
-	
-	// collect 3D data
-	for (int b=0;b<3;b++)	// band
-	for (int z=0;z<w;z++)	// axial
-	for (int xy=0;xy<h;xy++)   // lateral
-	for (int c=0;c<2;c++) {	    // re/im
-	    fb3d[b].put( 2*(z*h+xy) + c, raw[b*2+c].getf(z,xy) );
-	}
-
-	data.newData("band-0").setVal( band[0] );
-	data.newData("band-1").setVal( band[1] );
-	data.newData("band-2").setVal( band[2] );
 
+	// 3D data is only collected while the file is written
 	if (doSave3d) {
 	    Conf.Folder otf3d = cfg.r().mk("otf3d");
 	    otf3d.newDbl("NA").setVal( 1.4 );
@@ -273,17 +265,30 @@ public class OTF_Reader implements PlugIn {
 	    data3d.newInt("bands" ).setVal(3);
 	    data3d.newInt("samples-axial" ).setVal(w);
 	    data3d.newInt("samples-lateral" ).setVal(h);
-	    data3d.newDbl("cycles-lateral").setVal( 0.048828 );
-	    data3d.newDbl("cycles-axial").setVal( 0.12307 );
+	    data3d.newDbl("cycles-lateral").setVal( cycLat );
+	    data3d.newDbl("cycles-axial").setVal( cycAx );
 	
-	    data3d.newData("band-0").setVal( band3d[0] );
-	    data3d.newData("band-1").setVal( band3d[1] );
-	    data3d.newData("band-2").setVal( band3d[2] );
+	    for (int b=0;b<3;b++) {
+		final int band = b;
+		data3d.newData("band-"+b).setCodec( dataCodec ).setSource( 2 * 4 * h * w, new Conf.DataSource() {
+		    @Override
+		    public void writeTo( java.io.OutputStream out ) throws IOException {
+			// one axial plane at a time
+			ByteBuffer buf = ByteBuffer.allocate( 2 * 4 * h );
+			FloatBuffer fb = buf.asFloatBuffer();
+			for (int z=0;z<w;z++) {	    // axial
+			    fb.clear();
+			    for (int xy=0;xy<h;xy++) {	// lateral
+				fb.put( raw.get( band, 0, xy, z ));
+				fb.put( raw.get( band, 1, xy, z ));
+			    }
+			    out.write( buf.array() );
+			}
+		    }
+		});
+	    }
 	}
 
-
-
-	//fr.close();
 	cfg.saveFile( fObj.getAbsolutePath());
 	
     }
@@ -301,11 +306,13 @@ public class OTF_Reader implements PlugIn {
 	gd.addCheckbox("Output phases", doDisplayPhases );
 	gd.addCheckbox("Center DC for z-axis", doCenterDcZ );
 	gd.addCheckbox("Add negative xy-axis", doMirror );
+	gd.addCheckbox("Fast (approx.) log and phase", doFastMath );
 	gd.addMessage("--- Options for other output ---");
 	gd.addCheckbox("Show raw data (extra stack)", doDisplayRaw );
 	gd.addCheckbox("Store the OTF", doSaveProjection );
 	gd.addCheckbox("Store the 3D OTF (also stored 2D)", doSave3d );
 	gd.addNumericField("Emission wavelength", 515, 0 );
+	gd.addChoice("Encoding of stored data", DataCodec.getNames(), dataCodec );
 
 	gd.showDialog();
 	if (gd.wasCanceled()) 
@@ -315,18 +322,26 @@ public class OTF_Reader implements PlugIn {
 	doDisplayPhases = gd.getNextBoolean();
 	doCenterDcZ = gd.getNextBoolean();
 	doMirror = gd.getNextBoolean();
+	doFastMath = gd.getNextBoolean();
 	doDisplayRaw = gd.getNextBoolean();
 	doSaveProjection = gd.getNextBoolean();
 	doSave3d = gd.getNextBoolean();
 	doSaveProjection |= doSave3d;
 	wavelength = (int)gd.getNextNumber();
+	dataCodec = gd.getNextChoice();
 	
 	return 0;
     }
 
 
-    /** Read a .otf file for testing */
-    public static void main( String [] arg ) throws IOException {
+    /** Read a .otf file for testing, or with '-batch' as first
+     *  argument, run the headless {@link OTFBatchConverter} */
+    public static void main( String [] arg ) throws Exception {
+	if ((arg.length>0) && (arg[0].equals("-batch"))) {
+	    OTFBatchConverter.main( java.util.Arrays.copyOfRange( arg, 1, arg.length ));
+	    return;
+	}
+
 	OTF_Reader otfR = new OTF_Reader();
 
 	otfR.verbose = 1;
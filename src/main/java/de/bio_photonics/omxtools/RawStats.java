@@ -0,0 +1,146 @@
+package de.bio_photonics.omxtools;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+
+/** Statistics of a raw SIM stack, computed in one pass over the pixel
+ *  arrays (byte[], short[] or float[]): widefield (sum of all frames),
+ *  phase sums per angle, modulation (max-min over phases) per angle and
+ *  the mean of each frame. Slices are processed in parallel. */
+public final class RawStats {
+
+    /** outputs that can be requested, combine with | */
+    public static final int WIDEFIELD=1, ANGLE_SUMS=2, MODULATION=4, FRAME_MEANS=8;
+
+    /** widefield sum, one slice per z */
+    public ImageStack widefield;
+    /** phase sums, one stack per angle, one slice per z */
+    public ImageStack [] angleSums;
+    /** modulation (max-min over phases), one stack per angle */
+    public ImageStack [] modulation;
+    /** mean of each frame, in the order of the input stack */
+    public double [] frameMeans;
+
+    // pixels per block, so one block of all phases stays in cache
+    static final int BLOCK = 2048;
+
+    private RawStats() {}
+
+    /** Compute the outputs selected in 'outputs' for stack 'in', stored in
+     *  'order' (which has to consist of angle, phase and z) */
+    public static RawStats compute( final ImageStack in, AcquisitionOrder order, final int outputs ) {
+	if (order.getNrFrames() != in.getSize())
+	    throw new IllegalArgumentException("Stack does not match "+order);
+
+	final int w = in.getWidth(), h = in.getHeight(), len = w*h;
+	final int nAng = order.size( AcquisitionOrder.ANGLE );
+	final int nPha = order.size( AcquisitionOrder.PHASE );
+	final int zDepth = order.size( AcquisitionOrder.Z );
+	final int [] idx = order.tableRef( AcquisitionOrder.Z,
+	    AcquisitionOrder.ANGLE, AcquisitionOrder.PHASE );
+
+	final boolean doWf  = (outputs & WIDEFIELD)!=0;
+	final boolean doSum = (outputs & ANGLE_SUMS)!=0;
+	final boolean doMod = (outputs & MODULATION)!=0;
+	final boolean doMean= (outputs & FRAME_MEANS)!=0;
+
+	final float [][]   wf   = new float[ zDepth ][];
+	final float [][][] sums = new float[ nAng ][ zDepth ][];
+	final float [][][] mod  = new float[ nAng ][ zDepth ][];
+	final double []    mean = new double[ order.getNrFrames() ];
+
+	new SimpleMT.PFor(0, zDepth) {
+	    @Override
+	    public void at(int z) {
+		final float [] wfz = (doWf)?(new float[len]):(null);
+		final float [][] buf = new float[ nPha ][ BLOCK ];
+		final double [] frameSum = new double[ nAng*nPha ];
+
+		for (int ang=0; ang<nAng; ang++) {
+		    final float [] sz = (doSum || doWf)?(new float[len]):(null);
+		    final float [] mz = (doMod)?(new float[len]):(null);
+		    final Object [] px = new Object[ nPha ];
+		    for (int p=0; p<nPha; p++)
+			px[p] = in.getPixels( idx[ (z*nAng+ang)*nPha+p ]+1 );
+
+		    for (int off=0; off<len; off+=BLOCK) {
+			final int n = Math.min( BLOCK, len-off );
+			for (int p=0; p<nPha; p++) {
+			    getBlock( px[p], off, n, buf[p] );
+			    if (doMean) {
+				double s=0;
+				for (int i=0; i<n; i++) s+=buf[p][i];
+				frameSum[ ang*nPha+p ] += s;
+			    }
+			}
+			if (sz != null)
+			    for (int p=0; p<nPha; p++)
+				for (int i=0; i<n; i++)
+				    sz[off+i] += buf[p][i];
+			if (mz != null)
+			    for (int i=0; i<n; i++) {
+				float min=buf[0][i], max=buf[0][i];
+				for (int p=1; p<nPha; p++) {
+				    final float v = buf[p][i];
+				    if (v<min) min=v;
+				    if (v>max) max=v;
+				}
+				mz[off+i] = max-min;
+			    }
+		    }
+
+		    if (doWf)
+			for (int i=0; i<len; i++)
+			    wfz[i] += sz[i];
+		    if (doSum) sums[ang][z] = sz;
+		    if (doMod) mod[ang][z]  = mz;
+		}
+
+		wf[z] = wfz;
+		if (doMean)
+		    for (int i=0; i<nAng*nPha; i++)
+			mean[ idx[ z*nAng*nPha+i ] ] = frameSum[i]/len;
+	    }
+	}.run();
+
+	// collect the results
+	RawStats ret = new RawStats();
+	if (doWf)
+	    ret.widefield = toStack( wf, w, h );
+	if (doSum || doMod) {
+	    ret.angleSums  = (doSum)?(new ImageStack[ nAng ]):(null);
+	    ret.modulation = (doMod)?(new ImageStack[ nAng ]):(null);
+	    for (int ang=0; ang<nAng; ang++) {
+		if (doSum) ret.angleSums[ang]  = toStack( sums[ang], w, h );
+		if (doMod) ret.modulation[ang] = toStack( mod[ang], w, h );
+	    }
+	}
+	if (doMean)
+	    ret.frameMeans = mean;
+	return ret;
+    }
+
+    static ImageStack toStack( float [][] slices, int w, int h ) {
+	ImageStack ret = new ImageStack( w, h );
+	for (int z=0; z<slices.length; z++)
+	    ret.addSlice( "z="+(z+1), new FloatProcessor( w, h, slices[z], null ));
+	return ret;
+    }
+
+    /** copy pixels [off, off+n) of 'pixels' into 'buf', as float */
+    static void getBlock( Object pixels, int off, int n, float [] buf ) {
+	if (pixels instanceof short []) {
+	    final short [] p = (short [])pixels;
+	    for (int i=0; i<n; i++) buf[i] = p[off+i]&0xffff;
+	} else if (pixels instanceof byte []) {
+	    final byte [] p = (byte [])pixels;
+	    for (int i=0; i<n; i++) buf[i] = p[off+i]&0xff;
+	} else if (pixels instanceof float []) {
+	    System.arraycopy( (float [])pixels, off, buf, 0, n );
+	} else {
+	    throw new IllegalArgumentException("Unsupported pixel type");
+	}
+    }
+
+}
@@ -0,0 +1,265 @@
+package de.bio_photonics.omxtools;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+
+/** A virtual stack showing the slices of a source stack in a different
+ *  order, without copying them. Pixel arrays are shared with the source
+ *  (for in-memory sources), changing the view never changes the source:
+ *
+ *  'getProcessor', which ImageJ uses for display and edits, returns a
+ *  copy of the slice that is not kept (as other virtual stacks read a
+ *  fresh slice from disk), so browsing holds no extra memory. Slices are
+ *  only stored when changed, through 'setPixels' / 'setProcessor' or
+ *  'getWritableProcessor'.
+ *
+ *  Callers that only read use 'getPixels' or 'getSharedProcessor',
+ *  which share the source pixels, and must not change them. */
+public class ReorderedStack extends VirtualStack {
+
+    final ImageStack source;
+    int [] index;		// 0-based source slice for each of our slices
+    Object [] written;		// copied (or set) slices, null if shared
+    String [] labels;		// changed slice labels, null if from source
+
+    /** Create a view showing, as slice n, the slice index[n-1]+1 of 'source' */
+    public ReorderedStack( ImageStack source, int [] index ) {
+	super( source.getWidth(), source.getHeight(), source.getColorModel(), null );
+	for ( int i : index )
+	    if (i<0 || i>=source.getSize())
+		throw new IndexOutOfBoundsException("Source slice "+i+" out of range");
+	this.source  = source;
+	this.index   = index.clone();
+	this.written = new Object[ index.length ];
+	this.labels  = new String[ index.length ];
+    }
+
+    /** View of one 2D slice (z position 'slice', 0-based) of a stack
+     *  stored in 'order', ordered angle, phase */
+    public static ReorderedStack slice( ImageStack in, AcquisitionOrder order, int slice ) {
+	if (order.getNrFrames() != in.getSize())
+	    throw new IllegalArgumentException("Stack does not match "+order);
+	return new ReorderedStack( in, order.select( AcquisitionOrder.Z, slice,
+	    AcquisitionOrder.ANGLE, AcquisitionOrder.PHASE ));
+    }
+
+    /** View of one 2D slice (z position 'slice', 0-based) of an OMX stack
+     *  (angle-major, 3 angles x 5 phases per z), ordered angle, phase */
+    public static ReorderedStack omxSlice( ImageStack in, int slice ) {
+	return slice( in, AcquisitionOrder.omx( in.getSize()/15 ), slice );
+    }
+
+    /** View of one 2D slice (z position 'slice', 0-based) of a Zeiss stack
+     *  (phase-major, 5 phases x 5 angles x z), ordered angle, phase */
+    public static ReorderedStack zeissSlice( ImageStack in, int slice ) {
+	return slice( in, AcquisitionOrder.zeiss( in.getSize()/25 ), slice );
+    }
+
+    /** Returns the source stack */
+    public ImageStack getSource() {
+	return source;
+    }
+
+    /** Returns the (0-based) source slice shown as slice 'n' (1-based) */
+    public int getSourceIndex( int n ) {
+	return index[n-1];
+    }
+
+    /** Returns true if slice 'n' is still shared with the source */
+    public synchronized boolean isShared( int n ) {
+	return (written[n-1]==null);
+    }
+
+    /** Returns the pixels of slice 'n', shared with the source
+     *  if the slice was not written: do not change them */
+    @Override
+    public synchronized Object getPixels( int n ) {
+	if (written[n-1]!=null)
+	    return written[n-1];
+	return source.getPixels( index[n-1]+1 );
+    }
+
+    /** Replace the pixels of slice 'n', the source is not changed.
+     *  ImageJ hands back the displayed slice on every slice change, so
+     *  pixels equal to the (unwritten) source slice are not stored. */
+    @Override
+    public synchronized void setPixels( Object pixels, int n ) {
+	if (pixels==null)
+	    throw new IllegalArgumentException("pixels are null");
+	if (written[n-1]==null && sameAs( pixels, source.getPixels( index[n-1]+1 )))
+	    return;
+	written[n-1] = pixels;
+    }
+
+    /** true if 'a' and 'b' are the same pixel array, or hold the same values */
+    static boolean sameAs( Object a, Object b ) {
+	if (a==b)
+	    return true;
+	if (a instanceof byte [] && b instanceof byte [])
+	    return java.util.Arrays.equals( (byte [])a, (byte [])b );
+	if (a instanceof short [] && b instanceof short [])
+	    return java.util.Arrays.equals( (short [])a, (short [])b );
+	if (a instanceof float [] && b instanceof float [])
+	    return java.util.Arrays.equals( (float [])a, (float [])b );
+	if (a instanceof int [] && b instanceof int [])
+	    return java.util.Arrays.equals( (int [])a, (int [])b );
+	return false;
+    }
+
+    /** Returns a processor for slice 'n' that can be changed without
+     *  changing the source. Unless the slice was written, this is a
+     *  copy that is not kept: use 'getWritableProcessor' to keep changes. */
+    @Override
+    public ImageProcessor getProcessor( int n ) {
+	final Object p;
+	synchronized (this) {
+	    if (written[n-1]!=null)
+		return getSharedProcessor( n );
+	    p = source.getPixels( index[n-1]+1 );
+	}
+	// virtual sources return a fresh copy anyway
+	ImageProcessor ip = wrap( (source.isVirtual())?(p):(copy( p )) );
+	ip.setSliceNumber( n );
+	return ip;
+    }
+
+    /** Returns a processor for slice 'n' that can be changed without
+     *  changing the source: the slice is copied on first call. */
+    public synchronized ImageProcessor getWritableProcessor( int n ) {
+	if (written[n-1]==null) {
+	    // virtual sources return a fresh copy anyway
+	    Object p = source.getPixels( index[n-1]+1 );
+	    written[n-1] = (source.isVirtual())?(p):(copy( p ));
+	}
+	return getSharedProcessor( n );
+    }
+
+    /** Returns a processor sharing the pixels of the source slice
+     *  (or of the copy, if slice 'n' was written), for reading only */
+    public ImageProcessor getSharedProcessor( int n ) {
+	ImageProcessor ip = wrap( getPixels(n) );
+	ip.setSliceNumber( n );
+	return ip;
+    }
+
+    /** Returns slice 'n' of 'st' for reading only: shared for views,
+     *  'getProcessor' for all other stacks */
+    static ImageProcessor readProcessor( ImageStack st, int n ) {
+	if (st instanceof ReorderedStack)
+	    return ((ReorderedStack)st).getSharedProcessor( n );
+	return st.getProcessor( n );
+    }
+
+    /** Returns a copy of this view as in-memory stack, independent
+     *  of the source (which may then be closed) */
+    public ImageStack toMemory() {
+	ImageStack ret = new ImageStack( getWidth(), getHeight(), getColorModel() );
+	for (int n=1; n<=getSize(); n++) {
+	    Object p;
+	    synchronized (this) {
+		p = written[n-1];
+	    }
+	    if (p==null) {
+		p = source.getPixels( index[n-1]+1 );
+		if (!source.isVirtual())
+		    p = copy( p );
+	    }
+	    ret.addSlice( getSliceLabel(n), p );
+	}
+	return ret;
+    }
+
+    /** wrap pixels in a processor of matching type */
+    ImageProcessor wrap( Object pixels ) {
+	final int w = getWidth(), h = getHeight();
+	if (pixels instanceof byte [])
+	    return new ByteProcessor( w, h, (byte [])pixels, getColorModel() );
+	if (pixels instanceof short [])
+	    return new ShortProcessor( w, h, (short [])pixels, getColorModel() );
+	if (pixels instanceof float [])
+	    return new FloatProcessor( w, h, (float [])pixels, getColorModel() );
+	if (pixels instanceof int [])
+	    return new ColorProcessor( w, h, (int [])pixels );
+	throw new IllegalArgumentException("Unsupported pixel type");
+    }
+
+    static Object copy( Object pixels ) {
+	if (pixels instanceof byte [])
+	    return ((byte [])pixels).clone();
+	if (pixels instanceof short [])
+	    return ((short [])pixels).clone();
+	if (pixels instanceof float [])
+	    return ((float [])pixels).clone();
+	if (pixels instanceof int [])
+	    return ((int [])pixels).clone();
+	throw new IllegalArgumentException("Unsupported pixel type");
+    }
+
+    @Override
+    public int getSize() {
+	return index.length;
+    }
+
+    @Override
+    public int getBitDepth() {
+	return source.getBitDepth();
+    }
+
+    @Override
+    public synchronized String getSliceLabel( int n ) {
+	if (labels[n-1]!=null)
+	    return labels[n-1];
+	return source.getSliceLabel( index[n-1]+1 );
+    }
+
+    @Override
+    public synchronized void setSliceLabel( String label, int n ) {
+	labels[n-1] = label;
+    }
+
+    /** Removes slice 'n' from the view (the source is not changed) */
+    @Override
+    public synchronized void deleteSlice( int n ) {
+	if (n<1 || n>index.length)
+	    throw new IllegalArgumentException("Argument out of range: "+n);
+	index   = remove( index, n-1 );
+	written = remove( written, n-1 );
+	labels  = remove( labels, n-1 );
+    }
+
+    @Override
+    public void deleteLastSlice() {
+	if (index.length>0)
+	    deleteSlice( index.length );
+    }
+
+    static int [] remove( int [] a, int i ) {
+	int [] ret = new int[ a.length-1 ];
+	System.arraycopy( a, 0, ret, 0, i );
+	System.arraycopy( a, i+1, ret, i, a.length-i-1 );
+	return ret;
+    }
+
+    static <T> T [] remove( T [] a, int i ) {
+	T [] ret = java.util.Arrays.copyOf( a, a.length-1 );
+	System.arraycopy( a, i+1, ret, i, a.length-i-1 );
+	return ret;
+    }
+
+    @Override
+    public String getDirectory() {
+	return null;
+    }
+
+    @Override
+    public String getFileName( int n ) {
+	return null;
+    }
+
+}
@@ -0,0 +1,247 @@
+package de.bio_photonics.omxtools;
+
+import ij.ImageStack;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/** Streams a time-lapse / multi-channel OMX acquisition through the
+ *  splitter, one 3D volume (time point, channel) at a time. Reading
+ *  (and reordering), phase sums and slicing / padding run concurrently,
+ *  connected by small bounded queues, so memory use only depends on the
+ *  queue size and not on the length of the series. Results are passed
+ *  to a {@link Sink} in acquisition order, on the calling thread. */
+public class SIMPipeline {
+
+    /** Receives the results, one call per volume */
+    public interface Sink {
+	void put( Result res ) throws IOException;
+    }
+
+    /** Results for one volume (time point, channel) */
+    public static class Result {
+	/** time point and channel (0-based) */
+	public final int time, channel;
+	/** phase sums, one stack per angle (null if not requested) */
+	public ImageStack [] angleSums;
+	/** 2D-slices (15 frames each), one per z (null if not requested) */
+	public ImageStack [] slices;
+
+	ImageStack volume;	// frames of this volume, in OMX order
+
+	Result( int time, int channel ) {
+	    this.time = time;
+	    this.channel = channel;
+	}
+    }
+
+    final ImageStack in;
+    final AcquisitionOrder order;
+    final int zDepth;
+
+    boolean doSums = true;
+    int sumType = FrameSum.OUT_FLOAT;
+
+    boolean doSlices = false;
+    boolean zeroPad = false;
+    int padFactor = 2, fadePx = 0;
+    boolean floatOut = false;
+
+    int queueSize = 2;
+
+    // marks the end of the stream
+    private static final Result END = new Result( -1, -1 );
+
+    /** Create a pipeline for stack 'in', stored in 'order'. The order
+     *  has to contain 3 angles, 5 phases and z, and may have
+     *  time and channel dimensions in any nesting. */
+    public SIMPipeline( ImageStack in, AcquisitionOrder order ) {
+	if (order.size( AcquisitionOrder.ANGLE )!=3 || order.size( AcquisitionOrder.PHASE )!=5)
+	    throw new IllegalArgumentException("Need 3 angles x 5 phases, got "+order);
+	if (order.find( AcquisitionOrder.Z )<0)
+	    throw new IllegalArgumentException("Need a z dimension, got "+order);
+	if (order.getNrFrames() != in.getSize())
+	    throw new IllegalArgumentException("Stack does not match "+order);
+
+	// size-1 dimensions do not change the frame index
+	if (order.find( AcquisitionOrder.CHANNEL )<0)
+	    order = order.withOuter( AcquisitionOrder.CHANNEL, 1 );
+	if (order.find( AcquisitionOrder.TIME )<0)
+	    order = order.withOuter( AcquisitionOrder.TIME, 1 );
+	if (order.getDimensions().length != 5)
+	    throw new IllegalArgumentException("Unsupported dimensions in "+order);
+
+	this.in = in;
+	this.order = order;
+	this.zDepth = order.size( AcquisitionOrder.Z );
+    }
+
+    /** Compute phase sums per angle, output type as in FrameSum */
+    public SIMPipeline setPhaseSums( boolean on, int outType ) {
+	doSums  = on;
+	sumType = outType;
+	return this;
+    }
+
+    /** Produce 2D-slices, see OMX_Splitter.get2Dstack */
+    public SIMPipeline setSlices( boolean on, boolean zeroPad, int f, int fadePx, boolean floatOut ) {
+	this.doSlices  = on;
+	this.zeroPad   = zeroPad;
+	this.padFactor = f;
+	this.fadePx    = fadePx;
+	this.floatOut  = floatOut;
+	return this;
+    }
+
+    /** Number of volumes each queue may hold (default 2) */
+    public SIMPipeline setQueueSize( int n ) {
+	queueSize = Math.max( 1, n );
+	return this;
+    }
+
+    /** Number of time points */
+    public int getNrTimes() {
+	return order.size( AcquisitionOrder.TIME );
+    }
+
+    /** Number of channels */
+    public int getNrChannels() {
+	return order.size( AcquisitionOrder.CHANNEL );
+    }
+
+    /** Run the pipeline, blocks until all volumes are passed to 'sink'
+     *  (or a stage failed, its exception is re-thrown) */
+    public void run( Sink sink ) throws IOException {
+
+	final BlockingQueue<Result> read   = new ArrayBlockingQueue<Result>( queueSize );
+	final BlockingQueue<Result> summed = new ArrayBlockingQueue<Result>( queueSize );
+	final BlockingQueue<Result> done   = new ArrayBlockingQueue<Result>( queueSize );
+	final AtomicReference<Throwable> err = new AtomicReference<Throwable>();
+	final OMX_Splitter splitter = new OMX_Splitter();
+	final int [] table = order.tableRef( AcquisitionOrder.TIME, AcquisitionOrder.CHANNEL,
+	    AcquisitionOrder.ANGLE, AcquisitionOrder.Z, AcquisitionOrder.PHASE );
+	final int volSize = 15*zDepth;
+
+	Thread [] stages = new Thread[3];
+
+	// stage 1: read (and reorder) the frames of each volume
+	stages[0] = new Stage( "read", null, read, err ) {
+	    @Override
+	    Result produce() {
+		final int nt = getNrTimes(), nc = getNrChannels();
+		if (count >= nt*nc)
+		    return null;
+		Result r = new Result( count/nc, count%nc );
+		r.volume = new ImageStack( in.getWidth(), in.getHeight() );
+		for (int i=0; i<volSize; i++)
+		    r.volume.addSlice( in.getSliceLabel( table[count*volSize+i]+1 ),
+			in.getPixels( table[count*volSize+i]+1 ));
+		count++;
+		return r;
+	    }
+	};
+
+	// stage 2: phase sums
+	stages[1] = new Stage( "phase-sum", read, summed, err ) {
+	    @Override
+	    void process( Result r ) {
+		if (doSums)
+		    r.angleSums = splitter.seperateAngles( r.volume, sumType );
+	    }
+	};
+
+	// stage 3: slicing and padding
+	stages[2] = new Stage( "slice", summed, done, err ) {
+	    @Override
+	    void process( Result r ) {
+		if (doSlices) {
+		    r.slices = new ImageStack[ zDepth ];
+		    for (int z=0; z<zDepth; z++)
+			r.slices[z] = splitter.get2Dstack( r.volume, z,
+			    zeroPad, padFactor, fadePx, floatOut );
+		}
+		r.volume = null;
+	    }
+	};
+
+	for ( Thread t : stages )
+	    t.start();
+
+	// the sink runs on our thread
+	try {
+	    while (true) {
+		Result r = null;
+		while (r == null && err.get() == null)
+		    r = done.poll( 100, java.util.concurrent.TimeUnit.MILLISECONDS );
+		if (r == null || r == END)
+		    break;
+		sink.put( r );
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("Interrupted");
+	} finally {
+	    for ( Thread t : stages )
+		t.interrupt();
+	}
+
+	Throwable t = err.get();
+	if (t instanceof IOException)
+	    throw (IOException)t;
+	if (t instanceof RuntimeException)
+	    throw (RuntimeException)t;
+	if (t instanceof Error)
+	    throw (Error)t;
+	if (t != null)
+	    throw new RuntimeException( t );
+    }
+
+    /** One stage: takes from 'in' (or produces, if 'in' is null),
+     *  works on the result and passes it to 'out' */
+    static abstract class Stage extends Thread {
+
+	final BlockingQueue<Result> from, to;
+	final AtomicReference<Throwable> err;
+	int count = 0;
+
+	Stage( String name, BlockingQueue<Result> from, BlockingQueue<Result> to,
+	    AtomicReference<Throwable> err ) {
+	    super( "omxtools-pipeline-"+name );
+	    setDaemon( true );
+	    this.from = from;
+	    this.to   = to;
+	    this.err  = err;
+	}
+
+	/** next result, null at the end (for the first stage) */
+	Result produce() throws Exception {
+	    return null;
+	}
+
+	/** work on one result */
+	void process( Result r ) throws Exception {}
+
+	@Override
+	public void run() {
+	    try {
+		while (true) {
+		    Result r = (from == null)?(produce()):(from.take());
+		    if (r == null || r == END)
+			break;
+		    if (from != null)
+			process( r );
+		    to.put( r );
+		}
+		to.put( END );
+	    } catch (InterruptedException e) {
+		// stopped by 'run'
+	    } catch (Throwable t) {
+		err.compareAndSet( null, t );
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,150 @@
+package de.bio_photonics.omxtools;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/** Simple multi-threading helpers, shared by all tools.
+ *  Work is run on one pool of daemon threads. The calling thread
+ *  takes part in the work, and loops started from a pool thread
+ *  run sequentially, so nested loops can not dead-lock. */
+public final class SimpleMT {
+
+    private static volatile boolean useParallel = true;
+    private static final int nrThreads = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService pool = null;
+
+    private static final ThreadLocal<Boolean> isWorker = new ThreadLocal<Boolean>();
+
+    private SimpleMT() {}
+
+    /** Switch multi-threading on or off (e.g. for debugging, timing) */
+    public static void useParallel( boolean onOff ) {
+	useParallel = onOff;
+    }
+
+    /** Returns if multi-threading is switched on */
+    public static boolean isParallel() {
+	return useParallel;
+    }
+
+    /** Number of threads used */
+    public static int getNrThreads() {
+	return (useParallel)?(nrThreads):(1);
+    }
+
+    /** Returns the shared pool, creates it on first use */
+    static synchronized ExecutorService getPool() {
+	if (pool == null) {
+	    final AtomicInteger count = new AtomicInteger(0);
+	    pool = Executors.newFixedThreadPool( Math.max(1, nrThreads-1),
+		new ThreadFactory() {
+		    @Override
+		    public Thread newThread( final Runnable r ) {
+			Thread t = new Thread( new Runnable() {
+			    @Override
+			    public void run() {
+				isWorker.set( Boolean.TRUE );
+				r.run();
+			    }
+			}, "omxtools-worker-"+count.incrementAndGet());
+			t.setDaemon( true );
+			return t;
+		    }
+		});
+	}
+	return pool;
+    }
+
+    /** Returns true if we are called from one of our pool threads */
+    static boolean inWorker() {
+	return (isWorker.get() != null);
+    }
+
+
+    /** A parallel for-loop. Implement 'at', then call 'run' (which
+     *  blocks until all iterations are done). Exceptions thrown
+     *  in 'at' stop the loop and are re-thrown by 'run'. */
+    public static abstract class PFor {
+
+	final int start, stop;
+
+	/** Loop from 'start' (incl.) to 'stop' (excl.) */
+	public PFor( int start, int stop ) {
+	    this.start = start;
+	    this.stop  = stop;
+	}
+
+	/** The loop body */
+	public abstract void at( int i );
+
+	/** Run the loop */
+	public final void run() {
+
+	    final int n = stop-start;
+	    if (n<=0) return;
+
+	    // run sequential if we are nested, single-threaded or have only one element
+	    if ((!useParallel) || (nrThreads<2) || (n<2) || inWorker()) {
+		for (int i=start; i<stop; i++)
+		    at(i);
+		return;
+	    }
+
+	    final AtomicInteger next = new AtomicInteger( start );
+	    final AtomicReference<Throwable> err = new AtomicReference<Throwable>();
+
+	    final Runnable loop = new Runnable() {
+		@Override
+		public void run() {
+		    int i;
+		    while (( err.get()==null ) && ( (i = next.getAndIncrement()) < stop )) {
+			try {
+			    at(i);
+			} catch (Throwable t) {
+			    err.compareAndSet( null, t );
+			}
+		    }
+		}
+	    };
+
+	    // submit helpers, the calling thread does its share
+	    final int nrHelpers = Math.min( n, nrThreads ) - 1;
+	    final CountDownLatch done = new CountDownLatch( nrHelpers );
+	    ExecutorService p = getPool();
+	    for (int t=0; t<nrHelpers; t++) {
+		p.execute( new Runnable() {
+		    @Override
+		    public void run() {
+			try {
+			    loop.run();
+			} finally {
+			    done.countDown();
+			}
+		    }
+		});
+	    }
+	    loop.run();
+
+	    try {
+		done.await();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new RuntimeException( e );
+	    }
+
+	    Throwable t = err.get();
+	    if (t instanceof RuntimeException)
+		throw (RuntimeException)t;
+	    if (t instanceof Error)
+		throw (Error)t;
+	    if (t != null)
+		throw new RuntimeException( t );
+	}
+    }
+
+}
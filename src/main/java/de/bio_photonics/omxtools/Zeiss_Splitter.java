@@ -17,12 +17,34 @@ public class Zeiss_Splitter implements PlugIn {
 	@Override
 	public void run(String arg) {
 	
-		// get the active image plus instance
+		// read planes on demand from a DV file ...
+		if ("file".equals(arg)) {
+		    DVStackReader dv = null;
+		    try {
+			dv = DVStackReader.openDialog("Open Zeiss-ordered stack (.dv)");
+			if (dv == null) return;
+			run( new ImagePlus( dv.getName(), dv.getStack() ));
+		    } catch (java.io.IOException e) {
+			IJ.showMessage("Error reading DV file: "+e);
+		    } finally {
+			try {
+			    if (dv!=null) dv.close();
+			} catch (java.io.IOException e) {}
+		    }
+		    return;
+		}
+
+		// ... or get the active image plus instance
 		ImagePlus aip = ij.WindowManager.getCurrentImage();
 		if (aip == null) {
 			IJ.showMessage("No active image stack selected");
 			return;
 		}
+		run( aip );
+	}
+
+	/** Run the splitter on an image (which might be a virtual stack) */
+	void run(ImagePlus aip) {
 
 		// currently: check if these are 3x 5 phases
 		int numImages = aip.getStack().getSize();
@@ -39,6 +61,30 @@ public class Zeiss_Splitter implements PlugIn {
 				return ;
 			}
 
+		// what to do
+		GenericDialog gd = new GenericDialog("Zeiss stack splitter");
+		String [] whatToDo = { "2D slice as stack", "reorder stack in place: OMX order",
+		    "reorder stack in place: 25-frame blocks per slice" };
+		gd.addChoice("What to do", whatToDo, whatToDo[0]);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		final int sel = gd.getNextChoiceIndex();
+
+		// reorder the whole stack
+		if (sel > 0) {
+		    if (aip.getStack().isVirtual()) {
+			IJ.showMessage("Virtual stacks can not be reordered in place, "+
+			    "please load the stack into memory");
+			return;
+		    }
+		    if (sel == 1)
+			toOmxOrder( aip.getStack() );
+		    else
+			toSliceBlocks( aip.getStack() );
+		    aip.setStack( aip.getStack() );
+		    return;
+		}
+
 		// get parameters
 		GenericDialog gd2 = new GenericDialog("Slice selector");
 		gd2.addNumericField("Slice [1-" +(numImages/25)+"]",1,0);
@@ -53,30 +99,30 @@ public class Zeiss_Splitter implements PlugIn {
 		
 		// do the work
 		ImageStack res = get2Dstack( aip.getStack() , idx-1 );
+		res = DVStackReader.detach( res, aip.getStack() );
 		ImagePlus result = new ImagePlus(  "Zeiss plane "+idx, res);
 		result.show();
 
 	}
 
-	/** Copies a 2D-slice out of a stack */
+	/** Returns a 2D-slice of a stack, as view sharing the
+	 *  pixels of the input (see ReorderedStack) */
 	public ImageStack get2Dstack( ImageStack in3Dstack , int slice ) {
+		return ReorderedStack.zeissSlice( in3Dstack, slice );
+	}
 
-		// create a new stack
-		final int w= in3Dstack.getWidth();
-		final int h= in3Dstack.getHeight();
-		ImageStack newStack = new ImageStack( w, h);
-		final int numImages = in3Dstack.getSize();
-		final int zLen = numImages/25;
-
-		// collect the images
-		for (int angle=0; angle<5; angle++)
-		for (int pha=0; pha<5; pha+=1) {
-			final int pos = pha*(zLen*5) + (angle*zLen) + slice;
-			newStack.addSlice( in3Dstack.getProcessor(pos+1).duplicate());
-		}
+	/** Reorders a Zeiss stack in place into OMX order (angle, z, phase),
+	 *  without copying pixels. Virtual stacks are refused. */
+	public static AcquisitionOrder toOmxOrder( ImageStack stack ) {
+		return AcquisitionOrder.zeiss( stack.getSize()/25 ).reorder( stack,
+		    AcquisitionOrder.ANGLE, AcquisitionOrder.Z, AcquisitionOrder.PHASE );
+	}
 
-		// return result	
-		return newStack;	
+	/** Reorders a Zeiss stack in place into blocks of 25 frames (angle, phase)
+	 *  per slice, without copying pixels. Virtual stacks are refused. */
+	public static AcquisitionOrder toSliceBlocks( ImageStack stack ) {
+		return AcquisitionOrder.zeiss( stack.getSize()/25 ).reorder( stack,
+		    AcquisitionOrder.Z, AcquisitionOrder.ANGLE, AcquisitionOrder.PHASE );
 	}
 	
 